@@ -1,29 +1,349 @@
 package nz.ac.vuw.kanemich2.decTree;
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import nz.ac.vuw.kanemich2.report.Report;
 
 public class DecTree {
+    /**
+     * The data read from a file. As well as the instances, each attribute and each category is stored as a
+     * column of bits over the instances (bit i is set if instance i has the attribute true, or is in the
+     * category), so counting how many instances of a set fall on each side of a split is a few AND and
+     * bitCount operations for every 64 instances. Categories are numbered in the order they come out of
+     * categoryNames, and categoryIds has the number for each instance.
+     * <br>
+     * Attributes with numbers rather than true/false are marked in the numericAttributes bitset. Each of
+     * those is sorted into at most MAX_BINS bins once, when the file is read: cuts has the upper edge of each
+     * bin (except the last) and bins has the bin of each instance.
+     */
     private record DataSet(int numCategories, int numAttributes, Map<String, Integer> categoryNames,
-                          List<String> attNames, List<Instance> allInstances){}
+                          List<String> attNames, List<Instance> allInstances,
+                          List<String> categories, int[] categoryIds,
+                          long[][] attributeColumns, long[][] categoryColumns,
+                          long[] numericAttributes, float[][] cuts, byte[][] bins){}
+    /* Nodes with fewer instances than this are built in the same thread as their parent */
+    private static final int PARALLEL_SUBTREE_SIZE = 1024;
+    /* Nodes with at least this many instances also share out counting the attributes between the threads */
+    private static final int PARALLEL_COUNT_SIZE = 16384;
+    private static final int DEFAULT_FOREST_SIZE = 100;
+    private static final int MAX_BINS = 64;         // bins for each numeric attribute, at most 256 to fit a byte
+    private static final long FOREST_SEED = 307;   // fixed, so the same forest is built every time
+
     private DataSet trainingSet;
     private DataSet testSet;
     private Node decisionTree;
+    private FlatTree compiledTree;      // the decision tree compiled for classifying the test instances
+    private List<String> categories;    // the training data's categories, which the compiled trees' ids refer to
+    private String modelFileToSave;     // set by --save-model, where to save the model instead of predicting
+    private boolean streaming = false;  // set by --stream, to learn a Hoeffding tree one instance at a time
+    private int threads = 1;            // number of threads used to build the tree
+    private ForkJoinPool pool;          // only made for more than one thread
+    private int forestSize = 0;         // number of trees with --forest, otherwise 0 for a single tree
+    private int attributesPerNode = 0;  // attributes tried at each node of a forest's trees, 0 for sqrt(attributes)
+    private FlatTree[] forest;
 
+    /**
+     * Constructor reads the training file, builds the tree and then reads the test file. Options starting
+     * with "--" can be given anywhere in the arguments.
+     * @param args Arguments given when the app was executed.
+     */
     public DecTree(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--threads")) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--threads=")) {
+                threads = parsePositiveOption(arg, "--threads=");
+            } else if (arg.equals("--forest")) {
+                forestSize = DEFAULT_FOREST_SIZE;
+            } else if (arg.startsWith("--forest=")) {
+                forestSize = parsePositiveOption(arg, "--forest=");
+            } else if (arg.startsWith("--attributes=")) {
+                attributesPerNode = parsePositiveOption(arg, "--attributes=");
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--save-model")) {
+                modelFileToSave = "";       // the file name is the second positional argument
+            } else if (arg.startsWith("--")) {
+                Report.error("Unknown option: " + arg);
+                printUsage();
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
         if (args.length == 0 || args.length == 1) {
-            System.out.println("USAGE ass1-decTree.jar <training-filename> <test-filename>");
+            printUsage();
+        } else if (streaming && (forestSize > 0 || threads > 1)) {
+            Report.error("--stream builds a single tree in one thread, so can't be used with --forest or --threads");
+            System.exit(1);
+        } else if (ModelFile.isModelFile(args[0])) {
+            // The training file can be a model file made with --save-model, which already has the tree
+            loadModelFile(args[0]);
+            Report.info("\nLoading test data...\n");
+            testSet = readDataFile(args[1]);
+            bindTrees();
         } else {
-            System.out.println("Loading training data...\n");
-            trainingSet = readDataFile(args[0]);
-            System.out.println("\nBuilding Tree...\n");
-            decisionTree = buildTree(trainingSet.allInstances, trainingSet.attNames);
-            decisionTree.report("\t");
+            if (streaming) {
+                Report.info("Streaming training data...\n");
+                HoeffdingTree streamedTree = streamDataFile(args[0]);
+                decisionTree = streamedTree.toNode();
+                if (Report.shows(Report.Level.NORMAL)) decisionTree.report("\t");
+                categories = streamedTree.categories();
+                compiledTree = FlatTree.compile(decisionTree, streamedTree.attNames(), categories);
+            } else {
+                buildFromDataFile(args[0]);
+            }
 
-            System.out.println("\nLoading test data...\n");
+            if (modelFileToSave != null) {
+                modelFileToSave = args[1];
+                return;
+            }
+            Report.info("\nLoading test data...\n");
             testSet = readDataFile(args[1]);
+            bindTrees();
+        }
+    }
+
+    /**
+     * Reads the training file and builds the tree or forest from it
+     * @param fileName The training file
+     */
+    private void buildFromDataFile(String fileName) {
+        Report.info("Loading training data...\n");
+        trainingSet = readDataFile(fileName);
+        if (threads > 1) pool = new ForkJoinPool(threads);
+        if (forestSize > 0) {
+            Report.info("\nBuilding forest of " + forestSize + " trees...\n");
+            buildForest();
+        } else {
+            Report.info("\nBuilding Tree...\n");
+            TreeBuilder builder = new TreeBuilder();
+            if (pool == null) {
+                decisionTree = builder.buildTree();
+            } else {
+                decisionTree = pool.invoke(ForkJoinTask.adapt(() -> builder.buildTree()));
+            }
+            if (Report.shows(Report.Level.NORMAL)) decisionTree.report("\t");
+            compiledTree = FlatTree.compile(decisionTree, trainingSet.attNames, trainingSet.categories);
+        }
+        if (pool != null) pool.shutdown();
+        categories = trainingSet.categories;
+    }
+
+    /**
+     * Learns a Hoeffding tree from the training file, reading it one line at a time without keeping the
+     * instances, so the file can be bigger than memory.
+     * @param fileName The training file
+     * @return The learnt tree
+     */
+    private HoeffdingTree streamDataFile(String fileName) {
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName), 1 << 16)) {
+            String header = in.readLine();
+            if (header == null) throw new IOException("the file is empty");
+            List<String> attNames = new ArrayList<>(Arrays.asList(header.trim().split("\\s+")));
+            boolean classLast = isClassLast(attNames);
+            attNames.remove(classLast ? attNames.size() - 1 : 0);      // Skip the "Class" attribute.
+            Report.info("Number of attributes: " + attNames.size());
+
+            // the first few instances are kept to work out the bins for any numeric attributes
+            List<Instance> sample = new ArrayList<>();
+            String line;
+            while (sample.size() < HoeffdingTree.BIN_SAMPLE && (line = in.readLine()) != null) {
+                if (!line.isBlank()) sample.add(parseInstance(line.trim(), classLast));
+            }
+            if (sample.isEmpty()) throw new IOException("there are no instances");
+            HoeffdingTree tree = new HoeffdingTree(attNames, sample);
+            for (Instance instance : sample) tree.learn(instance);
+            sample = null;
+            while ((line = in.readLine()) != null) {
+                if (!line.isBlank()) tree.learn(parseInstance(line.trim(), classLast));
+            }
+            Report.info("Number of instances: " + tree.numInstances());
+            Report.info("Number of categories: " + tree.categories().size());
+            Report.info("Leaves: " + tree.numLeaves() + "\n");
+            return tree;
+        } catch (FileNotFoundException e) {
+            Report.error("File \"" + fileName + "\" not found.");
+            Report.error("Make sure file is in same directory as the jar file. " +
+                    "Otherwise you need to include the entire filepath too.");
+        } catch (IOException e) {
+            Report.error("Couldn't read \"" + fileName + "\": " + e.getMessage());
         }
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * Points the compiled tree, or each tree of the forest, at the test data's columns
+     */
+    private void bindTrees() {
+        if (forest != null) {
+            for (FlatTree tree : forest) tree.bind(testSet.attNames);
+        } else {
+            compiledTree.bind(testSet.attNames);
+        }
+    }
+
+    /**
+     * Saves the compiled tree or forest to the model file given with --save-model. Giving the model file in
+     * place of the training file on later runs loads it instead of building the tree again.
+     */
+    private void saveModelFile() {
+        FlatTree[] trees = forest != null ? forest : new FlatTree[]{compiledTree};
+        try {
+            ModelFile.save(modelFileToSave, trees[0].attributes(), categories.toArray(new String[0]), trees);
+        } catch (IOException e) {
+            Report.error("Couldn't write the model file \"" + modelFileToSave + "\": " + e.getMessage());
+            System.exit(1);
+        }
+        int totalNodes = 0;
+        for (FlatTree tree : trees) totalNodes += tree.size();
+        Report.summary("\nSaved " + trees.length + (trees.length == 1 ? " tree" : " trees") + " with " +
+                totalNodes + " nodes to " + modelFileToSave);
+    }
+
+    /**
+     * Loads a tree or forest from a model file, instead of reading training data and building it.
+     * @param fileName The model file
+     */
+    private void loadModelFile(String fileName) {
+        ModelFile.Contents contents = null;
+        try {
+            contents = ModelFile.load(fileName);
+        } catch (IOException e) {
+            Report.error("Couldn't read the model file \"" + fileName + "\": " + e.getMessage());
+            System.exit(1);
+        }
+        categories = List.of(contents.categories());
+        if (contents.trees().length == 1) {
+            compiledTree = contents.trees()[0];
+            Report.info("Loaded a tree with " + compiledTree.size() + " nodes from " + fileName);
+        } else {
+            forest = contents.trees();
+            Report.info("Loaded a forest of " + forest.length + " trees from " + fileName);
+        }
+    }
+
+    /**
+     * Builds a random forest: lots of trees, each from a bootstrap sample of the training instances (the same
+     * number of instances picked at random, so some more than once and some not at all), and only trying a
+     * random few of the attributes at each node. The trees are built in parallel with --threads.
+     * <br>
+     * The training data isn't copied for each tree, the sample is just an array of how many times each
+     * instance was picked. Each tree then votes on the training instances that weren't in its sample, and
+     * the accuracy of those votes (the out-of-bag accuracy) estimates how well the forest will do on new
+     * data, without needing a separate validation set.
+     */
+    private void buildForest() {
+        int numInstances = trainingSet.allInstances.size();
+        int numCategories = trainingSet.numCategories;
+        int perNode = attributesPerNode > 0 ? Math.min(attributesPerNode, trainingSet.numAttributes) :
+                Math.max(1, (int) Math.round(Math.sqrt(trainingSet.numAttributes)));
+        forest = new FlatTree[forestSize];
+        AtomicIntegerArray outOfBagVotes = new AtomicIntegerArray(numInstances * numCategories);
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < forestSize; t++) {
+            int treeNumber = t;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                Random random = new Random(FOREST_SEED + treeNumber);
+                int[] weights = new int[numInstances];
+                for (int i = 0; i < numInstances; i++) weights[random.nextInt(numInstances)]++;
+                FlatTree tree = FlatTree.compile(new TreeBuilder(weights, random, perNode).buildTree(),
+                        trainingSet.attNames, trainingSet.categories);
+                for (int i = 0; i < numInstances; i++) {
+                    if (weights[i] > 0) continue;
+                    int vote = tree.classifyId(trainingSet.allInstances.get(i));
+                    outOfBagVotes.incrementAndGet(i * numCategories + vote);
+                }
+                forest[treeNumber] = tree;
+            }));
+        }
+        if (pool == null) {
+            tasks.forEach(ForkJoinTask::invoke);
+        } else {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+
+        int totalNodes = 0;
+        for (FlatTree tree : forest) totalNodes += tree.size();
+        Report.info("Trees: " + forestSize + ", attributes tried at each node: " + perNode +
+                ", average nodes per tree: " + (float) totalNodes / forestSize);
+
+        int voted = 0;
+        int correct = 0;
+        for (int i = 0; i < numInstances; i++) {
+            int best = -1;
+            int bestVotes = 0;
+            for (int c = 0; c < numCategories; c++) {
+                if (outOfBagVotes.get(i * numCategories + c) > bestVotes) {
+                    best = c;
+                    bestVotes = outOfBagVotes.get(i * numCategories + c);
+                }
+            }
+            if (best < 0) continue;     // in every tree's sample, so no out-of-bag votes
+            voted++;
+            if (best == trainingSet.categoryIds[i]) correct++;
+        }
+        Report.metric("trees", forestSize);
+        if (voted == 0) {
+            Report.summary("No out-of-bag accuracy, every training instance was in every tree's sample " +
+                    "(try more trees)");
+            return;
+        }
+        Report.summary("Out-of-bag accuracy: " + (float) correct / voted * 100f + "% (from " + voted +
+                " of the " + numInstances + " training instances)");
+        Report.metric("out-of-bag accuracy", (float) correct / voted);
+    }
+
+    /**
+     * Classifies an instance with every tree of the forest and takes the category with the most votes.
+     * Ties go to the category that comes first in the training data's categories.
+     * @param instance The instance to classify
+     * @return The predicted category
+     */
+    private String classifyWithForest(Instance instance) {
+        int[] votes = new int[categories.size()];
+        for (FlatTree tree : forest) {
+            votes[tree.classifyId(instance)]++;
+        }
+        int best = 0;
+        for (int c = 1; c < votes.length; c++) {
+            if (votes[c] > votes[best]) best = c;
+        }
+        return categories.get(best);
+    }
+
+    private static void printUsage() {
+        Report.error("USAGE ass1-decTree.jar <training-filename> <test-filename> [--threads[=n]] " +
+                "[--forest[=trees] [--attributes=n]] [--stream]");
+        Report.error("      ass1-decTree.jar --save-model <training-filename> <model-filename> " +
+                "[--threads[=n]] [--forest[=trees] [--attributes=n]]");
+        Report.error("      ass1-decTree.jar <model-filename> <test-filename>");
+        System.exit(1);
+    }
+
+    /**
+     * Reads the number from an option such as --threads=4, exiting if it isn't a positive integer.
+     * @param arg The whole option
+     * @param prefix The option up to and including the '='
+     * @return The number given
+     */
+    private static int parsePositiveOption(String arg, String prefix) {
+        try {
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value > 0) return value;
+        } catch (NumberFormatException ignored) {
+        }
+        Report.error("The value for " + prefix.substring(0, prefix.length() - 1) +
+                " needs to be a positive integer.");
+        System.exit(1);
+        return 0;
     }
 
     /**
@@ -42,44 +362,69 @@ public class DecTree {
             List<String> attNames = new ArrayList<>();
             Scanner s = new Scanner(din.nextLine());
 
-            s.next();       // Skip the "Class" attribute.
             while (s.hasNext()) {attNames.add(s.next());}
+            boolean classLast = isClassLast(attNames);
+            attNames.remove(classLast ? attNames.size() - 1 : 0);      // Skip the "Class" attribute.
 
             int numAttributes = attNames.size();
-            System.out.println("Number of attributes: " + numAttributes);
+            Report.info("Number of attributes: " + numAttributes);
 
-            List<Instance> allInstances = readInstances(din);
-            System.out.println("Number of instances: " + allInstances.size());
+            List<Instance> allInstances = readInstances(din, classLast);
+            Report.info("Number of instances: " + allInstances.size());
             din.close();
 
             Map<String, Integer> categoryNames = tally(allInstances);
 
             int numCategories = categoryNames.size();
-            System.out.println("Number of categories: " + numCategories);
+            Report.info("Number of categories: " + numCategories);
             for (Map.Entry<String, Integer> cat : categoryNames.entrySet()) {
-                System.out.println(cat.getKey() + ": " + cat.getValue() +
+                Report.info(cat.getKey() + ": " + cat.getValue() +
                         " (" + ((float)cat.getValue()/allInstances.size()*100) + "%)");
             }
 
-            /* Print out table */
-            System.out.print("\nAttributes: ");
-            for (String name : attNames) {System.out.print(name + " ");}
-            System.out.println();
-
-            for (int i = 0; i < numAttributes+2; i++) {
-                System.out.print("--------");
-            }
-            System.out.println();
-            for (Instance i : allInstances) {
-                System.out.println(i);
+            /* Print out table (skipped with --quiet, since formatting every instance is slow on big files) */
+            if (Report.shows(Report.Level.NORMAL)) {
+                StringBuilder table = new StringBuilder("\nAttributes: ");
+                for (String name : attNames) {table.append(name).append(' ');}
+                table.append('\n');
+                table.append("--------".repeat(numAttributes + 2)).append('\n');
+                Report.print(Report.Level.NORMAL, table.toString());
+                for (Instance i : allInstances) {
+                    Report.info(i.toString());
+                }
             }
             /* Store data into a reusable class */
-            fileData =  new DataSet(numCategories, numAttributes, categoryNames, attNames, allInstances);
+            List<String> categories = new ArrayList<>(categoryNames.keySet());
+            long[][] attributeColumns = new long[numAttributes][bitSetLength(allInstances.size())];
+            long[][] categoryColumns = new long[numCategories][bitSetLength(allInstances.size())];
+            int[] categoryIds = new int[allInstances.size()];
+            for (int i = 0; i < allInstances.size(); i++) {
+                Instance instance = allInstances.get(i);
+                for (int a = 0; a < numAttributes; a++) {
+                    if (instance.getAtt(a)) attributeColumns[a][i >>> 6] |= 1L << i;
+                }
+                categoryIds[i] = categories.indexOf(instance.getCategory());
+                categoryColumns[categoryIds[i]][i >>> 6] |= 1L << i;
+            }
+            long[] numericAttributes = new long[bitSetLength(numAttributes)];
+            float[][] cuts = new float[numAttributes][];
+            byte[][] bins = new byte[numAttributes][];
+            for (int a = 0; a < numAttributes; a++) {
+                for (Instance instance : allInstances) {
+                    if (instance.isNumeric(a)) {
+                        numericAttributes[a >>> 6] |= 1L << a;
+                        binNumericAttribute(allInstances, a, cuts, bins);
+                        break;
+                    }
+                }
+            }
+            fileData =  new DataSet(numCategories, numAttributes, categoryNames, attNames, allInstances,
+                    categories, categoryIds, attributeColumns, categoryColumns, numericAttributes, cuts, bins);
         } catch (FileNotFoundException e) {
-            System.err.println("File \"" + fileName + "\" not found.");
-            System.err.println("Make sure file is in same directory as the jar file. " +
+            Report.error("File \"" + fileName + "\" not found.");
+            Report.error("Make sure file is in same directory as the jar file. " +
                     "Otherwise you need to include the entire filepath too.");
-            System.exit(0);
+            System.exit(1);
         }
         return fileData;
     }
@@ -90,85 +435,504 @@ public class DecTree {
      * @param din The provided scanner after reading the first line
      * @return A list of instances
      */
-    private List<Instance> readInstances(Scanner din) {
-        /* instance = classname and space separated attribute values */
+    private List<Instance> readInstances(Scanner din, boolean classLast) {
         List<Instance> instances = new ArrayList<>();
         while (din.hasNext()) {
-            Scanner line = new Scanner(din.nextLine());
-            // the first token in the line is the instance's category
-            instances.add(new Instance(line.next(), line));
+            String text = din.nextLine().trim();
+            if (!text.isEmpty()) instances.add(parseInstance(text, classLast));
         }
         return instances;
     }
 
     /**
-     * Method to build the decision tree from the training data
-     * @param instances The set of training instances that have been provided to the node being constructed
-     * @param attributes The list of attributes that were not used on the path from the root to this node
-     * @return The recursive node for this particular part of the tree
+     * Checks the attribute labels from the first line of a file to see if the class is the last column.
+     * Files for the other two programs (like wine-training) have the class last instead of first.
+     * @param labels All the labels on the first line
+     * @return true if the class is last
+     */
+    static boolean isClassLast(List<String> labels) {
+        return !labels.get(0).equalsIgnoreCase("class") && labels.get(labels.size() - 1).equalsIgnoreCase("class");
+    }
+
+    /**
+     * Reads an instance from one line of a file
+     * @param text The line, which mustn't be empty
+     * @param classLast Whether the category is the last value on the line rather than the first
+     * @return The instance
      */
-    private Node buildTree(List<Instance> instances, List<String> attributes) {
-        if (instances.isEmpty()) {
-            return buildLeaf(trainingSet.allInstances);
-        } else if (impurity(instances) == 0.0) {
-            return buildLeaf(instances);
-        } else if (attributes.isEmpty()) {
-            return buildLeaf(instances);
+    static Instance parseInstance(String text, boolean classLast) {
+        /* instance = classname and space separated attribute values */
+        if (classLast) {
+            int lastSpace = Math.max(text.lastIndexOf(' '), text.lastIndexOf('\t'));
+            return new Instance(text.substring(lastSpace + 1), new Scanner(text.substring(0, lastSpace + 1)));
         } else {
-            // Looking for the attribute with the best weighted impurity
-            float bestImpurity = Float.MAX_VALUE;
-            String bestAtt = "";
-            List<Instance> bestTrueInstances = new ArrayList<>();
-            List<Instance> bestFalseInstances = new ArrayList<>();
-            for (String attribute : attributes) {
-                // Split into two sets of instances
-                List<Instance> trueInstances = new ArrayList<>();
-                List<Instance> falseInstances = new ArrayList<>();
-                int attIndex = trainingSet.attNames.indexOf(attribute);   // Index of the attribute in the training set
-                for (Instance instance : instances) {
-                    if(instance.getAtt(attIndex)) {     // Checking if the attribute is true in this instance
-                        trueInstances.add(instance);
-                    } else {
-                        falseInstances.add(instance);
+            Scanner line = new Scanner(text);
+            // the first token in the line is the instance's category
+            return new Instance(line.next(), line);
+        }
+    }
+
+    /**
+     * Sorts the values of a numeric attribute into bins, so the tree only has to try a split between each
+     * bin rather than between every different value. If there aren't more different values than MAX_BINS,
+     * each gets its own bin, otherwise the bins have about the same number of instances each.
+     * @param instances The instances
+     * @param attribute The attribute
+     * @param cuts Set to the upper edge of each bin but the last, so bin k has the values from
+     *             cuts[k-1] (exclusive) to cuts[k] (inclusive)
+     * @param bins Set to the bin of each instance
+     */
+    static void binNumericAttribute(List<Instance> instances, int attribute, float[][] cuts, byte[][] bins) {
+        float[] sorted = new float[instances.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = instances.get(i).getNumber(attribute);
+        Arrays.sort(sorted);
+        float[] attributeCuts = new float[MAX_BINS - 1];
+        int numCuts = 0;
+        for (int i = 0; i < sorted.length - 1; i++) {
+            if (sorted[i] == sorted[i + 1]) continue;
+            // the first of these only happens if there are few enough values that each gets a bin
+            if (numCuts == attributeCuts.length) {
+                numCuts = 0;
+                for (int k = 1; k < MAX_BINS; k++) {
+                    float cut = sorted[(int) ((long) k * sorted.length / MAX_BINS)];
+                    if (cut != sorted[sorted.length - 1] && (numCuts == 0 || cut != attributeCuts[numCuts - 1])) {
+                        attributeCuts[numCuts++] = cut;
                     }
                 }
-                // make weights
-                float trueWeight = (float) trueInstances.size() / instances.size();
-                float falseWeight = (float) falseInstances.size() / instances.size();
-                float averageWeightedImpurity = trueWeight*impurity(trueInstances) +
-                        falseWeight*impurity(falseInstances);
-                // check if best (im)purity
-                if (averageWeightedImpurity < bestImpurity) {
-                    bestImpurity = averageWeightedImpurity;
-                    bestAtt = attribute;
-                    bestTrueInstances = trueInstances;
-                    bestFalseInstances = falseInstances;
+                break;
+            }
+            attributeCuts[numCuts++] = sorted[i];
+        }
+        cuts[attribute] = Arrays.copyOf(attributeCuts, numCuts);
+        bins[attribute] = new byte[instances.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            bins[attribute][i] = (byte) binOf(cuts[attribute], instances.get(i).getNumber(attribute));
+        }
+    }
+
+    /**
+     * @return The bin a value goes in, which is the first one whose upper edge is at least the value
+     */
+    static int binOf(float[] cuts, float value) {
+        int low = 0;
+        int high = cuts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cuts[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Builds the decision tree from the training data. The instances are kept in one array of instance
+     * numbers, and each node gets a range of it. Once a node has picked its attribute, its range is
+     * partitioned in place (like quicksort) into the instances with the attribute true and then false, which
+     * are the ranges for its two children. The attributes used on the path to a node are a bitset of
+     * attribute numbers. So building the tree doesn't copy any instances or lists. The arrays for counting
+     * are also reused from node to node, since a node is finished with them before its children are built.
+     * <br>
+     * With more than one thread, each big enough node builds its true child as a separate fork-join task,
+     * with its own TreeBuilder (sharing the order array, since the ranges don't overlap) and its own copy of
+     * the used attributes. The biggest nodes also split counting the attributes between tasks. Either way
+     * every node still looks at the attributes in the same order and picks the same one, so the tree is the
+     * same as building it with one thread.
+     * <br>
+     * Numeric attributes are split between two of their bins rather than on true/false, and can be split on
+     * again further down. For those each node has a histogram: the count of each category in each bin of
+     * each numeric attribute, from which every possible split is scored in one pass over the bins. Only the
+     * root's histograms are counted from all the instances. After that, only the smaller child's are
+     * counted, and the bigger child's are the parent's minus the smaller child's.
+     */
+    private class TreeBuilder {
+        private final int numInstances = trainingSet.allInstances.size();
+        private final int numAttributes = trainingSet.numAttributes;
+        private final int numCategories = trainingSet.numCategories;
+        private final int[] order;
+        private final long[] usedAttributes;
+        private final int[] weights;            // how many times each instance is in the sample, or null for once each
+        private final Random random;            // picks the candidate attributes at each node, or null to try them all
+        private final int attributesPerNode;
+        private final boolean parallel;
+        private final long[] candidates = new long[bitSetLength(numAttributes)];
+        private final int[] unused = new int[numAttributes];
+        private final long[] numeric = trainingSet.numericAttributes;
+        private final int[] histogramOffsets = new int[numAttributes];  // where each numeric attribute's is
+        private final int histogramSize;                                // or 0 if there aren't any
+        private final long[] reaching = new long[bitSetLength(numInstances)];
+        private final int[] counts = new int[numCategories];
+        private final int[] trueCounts = new int[numAttributes * numCategories];
+        private final int[] attributeTrueCounts = new int[numCategories];
+        private final int[] falseCounts = new int[numCategories];
+
+        {
+            int offset = 0;
+            for (int a = 0; a < numAttributes; a++) {
+                histogramOffsets[a] = offset;
+                if (isNumeric(a)) offset += (trainingSet.cuts[a].length + 1) * numCategories;
+            }
+            histogramSize = offset;
+        }
+
+        TreeBuilder() {
+            order = new int[numInstances];
+            for (int i = 0; i < numInstances; i++) order[i] = i;
+            usedAttributes = new long[bitSetLength(numAttributes)];
+            weights = null;
+            random = null;
+            attributesPerNode = numAttributes;
+            parallel = pool != null;
+        }
+
+        /**
+         * Constructor for building a tree of a forest, from a sample of the training instances (possibly with
+         * some of them more than once) and only looking at a random few of the attributes at each node. The
+         * tree is built in one thread, since the forest builds its trees in parallel instead.
+         * @param weights How many times each training instance is in the sample
+         * @param random Used to pick the attributes
+         * @param attributesPerNode The number of attributes to pick at each node
+         */
+        TreeBuilder(int[] weights, Random random, int attributesPerNode) {
+            int sampled = 0;
+            for (int weight : weights) if (weight > 0) sampled++;
+            order = new int[sampled];
+            for (int i = 0, o = 0; i < numInstances; i++) if (weights[i] > 0) order[o++] = i;
+            usedAttributes = new long[bitSetLength(numAttributes)];
+            this.weights = weights;
+            this.random = random;
+            this.attributesPerNode = attributesPerNode;
+            parallel = false;
+        }
+
+        /**
+         * Constructor for building a subtree in another task
+         * @param parent The builder of the subtree's parent, whose order array is shared
+         * @param usedAttributes The attributes used on the path to the subtree, which this builder now owns
+         */
+        private TreeBuilder(TreeBuilder parent, long[] usedAttributes) {
+            this.order = parent.order;
+            this.usedAttributes = usedAttributes;
+            weights = parent.weights;
+            random = parent.random;
+            attributesPerNode = parent.attributesPerNode;
+            parallel = parent.parallel;
+        }
+
+        Node buildTree() {
+            return buildTree(0, order.length, numAttributes, histogramSize == 0 ? null : countBins(0, order.length));
+        }
+
+        /**
+         * Method to build the decision tree from the training data
+         * @param from The start of this node's range of instances in the order array
+         * @param to The end of the range (exclusive)
+         * @param attributesLeft The number of attributes that were not used on the path from the root to this
+         *                       node (numeric attributes are never used up)
+         * @param histograms The histograms for the numeric attributes, or null if there aren't any
+         * @return The recursive node for this particular part of the tree
+         */
+        private Node buildTree(int from, int to, int attributesLeft, int[] histograms) {
+            if (from == to) {
+                // can't count from the order array here, other tasks may be partitioning it
+                for (int c = 0; c < numCategories; c++) {
+                    counts[c] = trainingSet.categoryNames.get(trainingSet.categories.get(c));
+                }
+                return buildLeaf(counts, numInstances);
+            }
+            if (attributesLeft > 0) pickCandidates(attributesLeft);
+            int size = countCategories(from, to, attributesLeft > 0);
+            if (impurity(counts, size) == 0.0) {
+                return buildLeaf(counts, size);
+            } else if (attributesLeft == 0) {
+                return buildLeaf(counts, size);
+            } else {
+                // Looking for the attribute with the best weighted impurity
+                float bestImpurity = Float.MAX_VALUE;
+                int bestAtt = -1;
+                int bestBin = -1;
+                for (int a = 0; a < numAttributes; a++) {
+                    if (!isCandidate(a)) continue;
+                    if (isNumeric(a)) {
+                        // try splitting after each bin, with the bins so far on the true side
+                        int offset = histogramOffsets[a];
+                        int numBins = trainingSet.cuts[a].length + 1;
+                        Arrays.fill(attributeTrueCounts, 0);
+                        int trueSize = 0;
+                        for (int bin = 0; bin < numBins - 1; bin++) {
+                            for (int c = 0; c < numCategories; c++) {
+                                int count = histograms[offset + bin * numCategories + c];
+                                attributeTrueCounts[c] += count;
+                                trueSize += count;
+                            }
+                            if (trueSize == 0) continue;
+                            if (trueSize == size) break;
+                            for (int c = 0; c < numCategories; c++) falseCounts[c] = counts[c] - attributeTrueCounts[c];
+                            float trueWeight = (float) trueSize / size;
+                            float falseWeight = (float) (size - trueSize) / size;
+                            float averageWeightedImpurity = trueWeight*impurity(attributeTrueCounts, trueSize) +
+                                    falseWeight*impurity(falseCounts, size - trueSize);
+                            if (averageWeightedImpurity < bestImpurity) {
+                                bestImpurity = averageWeightedImpurity;
+                                bestAtt = a;
+                                bestBin = bin;
+                            }
+                        }
+                        continue;
+                    }
+                    int trueSize = 0;
+                    for (int c = 0; c < numCategories; c++) {
+                        attributeTrueCounts[c] = trueCounts[a * numCategories + c];
+                        falseCounts[c] = counts[c] - attributeTrueCounts[c];
+                        trueSize += attributeTrueCounts[c];
+                    }
+                    // make weights
+                    float trueWeight = (float) trueSize / size;
+                    float falseWeight = (float) (size - trueSize) / size;
+                    float averageWeightedImpurity = trueWeight*impurity(attributeTrueCounts, trueSize) +
+                            falseWeight*impurity(falseCounts, size - trueSize);
+                    // check if best (im)purity
+                    if (averageWeightedImpurity < bestImpurity) {
+                        bestImpurity = averageWeightedImpurity;
+                        bestAtt = a;
+                        bestBin = -1;
+                    }
+                }
+                if (bestAtt < 0) {      // only numeric attributes left, and none of them can split these instances
+                    return buildLeaf(counts, size);
+                }
+                boolean numericSplit = bestBin >= 0;
+                int split = numericSplit ? partition(from, to, trainingSet.bins[bestAtt], bestBin) :
+                        partition(from, to, trainingSet.attributeColumns[bestAtt]);
+                int childAttributesLeft = numericSplit ? attributesLeft : attributesLeft - 1;
+                int[] trueHistograms = null;
+                int[] falseHistograms = null;
+                if (histograms != null) {
+                    // count the smaller child, and take it away from this node's for the bigger one
+                    boolean trueSmaller = split - from <= to - split;
+                    int[] smaller = trueSmaller ? countBins(from, split) : countBins(split, to);
+                    for (int i = 0; i < histogramSize; i++) histograms[i] -= smaller[i];
+                    trueHistograms = trueSmaller ? smaller : histograms;
+                    falseHistograms = trueSmaller ? histograms : smaller;
+                }
+                if (!numericSplit) usedAttributes[bestAtt >>> 6] |= 1L << bestAtt;
+                Node ifTrueNode;
+                Node ifFalseNode;
+                if (parallel && size >= PARALLEL_SUBTREE_SIZE) {
+                    TreeBuilder trueBuilder = new TreeBuilder(this, usedAttributes.clone());
+                    int[] forkedHistograms = trueHistograms;
+                    ForkJoinTask<Node> trueTask = ForkJoinTask.adapt(() ->
+                            trueBuilder.buildTree(from, split, childAttributesLeft, forkedHistograms)).fork();
+                    ifFalseNode = buildTree(split, to, childAttributesLeft, falseHistograms);
+                    ifTrueNode = trueTask.join();
+                } else {
+                    ifTrueNode = buildTree(from, split, childAttributesLeft, trueHistograms);
+                    ifFalseNode = buildTree(split, to, childAttributesLeft, falseHistograms);
+                }
+                usedAttributes[bestAtt >>> 6] &= ~(1L << bestAtt);
+                if (numericSplit) {
+                    return new Node(trainingSet.attNames.get(bestAtt), trainingSet.cuts[bestAtt][bestBin],
+                            ifTrueNode, ifFalseNode);
+                }
+                return  new Node(trainingSet.attNames.get(bestAtt), ifTrueNode, ifFalseNode);
+            }
+        }
+
+        private boolean isNumeric(int attribute) {
+            return (numeric[attribute >>> 6] & (1L << attribute)) != 0;
+        }
+
+        /**
+         * Counts the histograms of the numeric attributes for a range of instances
+         * @return The count of each category in each bin, for each numeric attribute one after the other
+         */
+        private int[] countBins(int from, int to) {
+            int[] histograms = new int[histogramSize];
+            int[] categoryIds = trainingSet.categoryIds;
+            for (int a = 0; a < numAttributes; a++) {
+                if (!isNumeric(a)) continue;
+                byte[] bins = trainingSet.bins[a];
+                int offset = histogramOffsets[a];
+                for (int i = from; i < to; i++) {
+                    int instance = order[i];
+                    histograms[offset + (bins[instance] & 0xFF) * numCategories + categoryIds[instance]] +=
+                            weights == null ? 1 : weights[instance];
+                }
+            }
+            return histograms;
+        }
+
+        private boolean isCandidate(int attribute) {
+            return (candidates[attribute >>> 6] & (1L << attribute)) != 0;
+        }
+
+        /**
+         * Sets the candidates bitset to the attributes to try splitting a node on. That's all the unused ones,
+         * except when building a tree of a forest, where it's a random few of them.
+         * @param attributesLeft The number of unused attributes
+         */
+        private void pickCandidates(int attributesLeft) {
+            for (int w = 0; w < candidates.length; w++) candidates[w] = ~usedAttributes[w];
+            if (numAttributes % 64 != 0) candidates[candidates.length - 1] &= (1L << numAttributes) - 1;
+            if (random == null || attributesLeft <= attributesPerNode) return;
+
+            // shuffle just the start of the unused attributes to pick them
+            int numUnused = 0;
+            for (int a = 0; a < numAttributes; a++) if (isCandidate(a)) unused[numUnused++] = a;
+            Arrays.fill(candidates, 0);
+            for (int i = 0; i < attributesPerNode; i++) {
+                int pick = i + random.nextInt(numUnused - i);
+                int a = unused[pick];
+                unused[pick] = unused[i];
+                unused[i] = a;
+                candidates[a >>> 6] |= 1L << a;
+            }
+        }
+
+        /**
+         * Counts the instances of each category in a range, into counts. If splits is true it also counts, for
+         * each candidate attribute, the instances of each category that have the attribute true, into
+         * trueCounts. An instance in the sample more than once is counted that many times.
+         * <br>
+         * For a big range this is done with the bitset columns: the range is marked in the reaching bitset,
+         * then for each 64 instances it's an AND with the attribute column and with each category column, and
+         * a bitCount of each. That costs the same however few of the instances are in the range though, so
+         * for a small range it goes through the instances one at a time instead, counting just the attributes
+         * each one has true. The bitsets can't count an instance more than once, so it always goes one at a
+         * time for a forest's sample.
+         * @return The total number of instances counted
+         */
+        private int countCategories(int from, int to, boolean splits) {
+            Arrays.fill(counts, 0);
+            if (splits) Arrays.fill(trueCounts, 0);
+            int[] categoryIds = trainingSet.categoryIds;
+            // one at a time costs about (size * attributes/2), the columns about (words * attributes * (categories+1))
+            if (!splits || weights != null || to - from < 2 * reaching.length * (numCategories + 1)) {
+                int size = 0;
+                for (int i = from; i < to; i++) {
+                    int instance = order[i];
+                    int category = categoryIds[instance];
+                    int weight = weights == null ? 1 : weights[instance];
+                    counts[category] += weight;
+                    size += weight;
+                    if (!splits) continue;
+                    Instance values = trainingSet.allInstances.get(instance);
+                    for (int w = 0; w < candidates.length; w++) {
+                        long bits = values.getAttBits(w) & candidates[w] & ~numeric[w];
+                        while (bits != 0) {
+                            int a = (w << 6) + Long.numberOfTrailingZeros(bits);
+                            trueCounts[a * numCategories + category] += weight;
+                            bits &= bits - 1;
+                        }
+                    }
+                }
+                return size;
+            }
+
+            for (int i = from; i < to; i++) reaching[order[i] >>> 6] |= 1L << order[i];
+            long[][] categoryColumns = trainingSet.categoryColumns;
+            for (int w = 0; w < reaching.length; w++) {
+                for (int c = 0; c < numCategories; c++) {
+                    counts[c] += Long.bitCount(reaching[w] & categoryColumns[c][w]);
+                }
+            }
+            if (parallel && to - from >= PARALLEL_COUNT_SIZE) {
+                // each task fills in trueCounts for its own attributes, only reading the reaching bitset
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                int chunkSize = Math.max(1, (numAttributes + threads - 1) / threads);
+                for (int start = 0; start < numAttributes; start += chunkSize) {
+                    int chunkStart = start;
+                    int chunkEnd = Math.min(numAttributes, start + chunkSize);
+                    tasks.add(ForkJoinTask.adapt(() -> countColumns(chunkStart, chunkEnd)));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                countColumns(0, numAttributes);
+            }
+            for (int i = from; i < to; i++) reaching[order[i] >>> 6] = 0;
+            return to - from;
+        }
+
+        /**
+         * Counts the instances in the reaching bitset of each category with each attribute true, for the
+         * candidate attributes from first to last (exclusive), into trueCounts.
+         */
+        private void countColumns(int first, int last) {
+            long[][] categoryColumns = trainingSet.categoryColumns;
+            for (int a = first; a < last; a++) {
+                if (!isCandidate(a) || isNumeric(a)) continue;
+                long[] column = trainingSet.attributeColumns[a];
+                int offset = a * numCategories;
+                for (int w = 0; w < reaching.length; w++) {
+                    long bits = reaching[w] & column[w];
+                    if (bits == 0) continue;
+                    for (int c = 0; c < numCategories; c++) {
+                        trueCounts[offset + c] += Long.bitCount(bits & categoryColumns[c][w]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Partitions a range of the order array so the instances with the attribute true come first.
+         * @param column The attribute's column
+         * @return The start of the instances with the attribute false
+         */
+        private int partition(int from, int to, long[] column) {
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                if ((column[order[i] >>> 6] & (1L << order[i])) != 0) {
+                    i++;
+                } else {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j--] = swap;
                 }
             }
-            List<String> newAtt = new ArrayList<>(attributes);
-            newAtt.remove(bestAtt);
-            Node ifTrueNode = buildTree(bestTrueInstances, newAtt);
-            Node ifFalseNode = buildTree(bestFalseInstances, newAtt);
-            return  new Node(bestAtt, ifTrueNode, ifFalseNode);
+            return i;
+        }
+
+        /**
+         * Partitions a range of the order array so the instances in the given bin or below come first.
+         * @param bins The bin of each instance for the numeric attribute
+         * @param lastTrueBin The last bin to go first
+         * @return The start of the instances in the bins after it
+         */
+        private int partition(int from, int to, byte[] bins, int lastTrueBin) {
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                if ((bins[order[i]] & 0xFF) <= lastTrueBin) {
+                    i++;
+                } else {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j--] = swap;
+                }
+            }
+            return i;
         }
     }
 
     /**
      * Convenience method to build a leaf node when building the tree.
-     * @param instances The list of instances associated with this node.
+     * @param counts The number of instances of each category associated with this node.
+     * @param size The total number of instances
      * @return The leaf node with the predicted category and its probability
      */
-    private Node buildLeaf(List<Instance> instances) {
-        Map<String, Integer> tally = tally(instances);
+    private Node buildLeaf(int[] counts, int size) {
         String bestCat = "";
         int maxFreq = 0;
-        for (Map.Entry<String, Integer> cat : tally.entrySet()) {
-            if (cat.getValue() > maxFreq) {
-                bestCat = cat.getKey();
-                maxFreq = cat.getValue();
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] > maxFreq) {
+                bestCat = trainingSet.categories.get(c);
+                maxFreq = counts[c];
             }
         }
-        float probability = (float)maxFreq / instances.size();
+        float probability = (float)maxFreq / size;
         return new Node(bestCat, probability);
     }
     /**
@@ -190,44 +954,45 @@ public class DecTree {
     }
 
     /**
-     * Method to find the impurity for the list of instances. The lower the impurity the more pure
-     * it is. Where an impurity of zero means the whole list consists of the same category.
-     * @param instances The list of instance to check for impurity
+     * Method to find the impurity for a set of instances. The lower the impurity the more pure
+     * it is. Where an impurity of zero means the whole set consists of the same category.
+     * <br>
+     * With two categories it's the product of their fractions. That doesn't work with more than two though:
+     * multiplying in a third fraction makes a set with all three categories look purer than one with two,
+     * so a numeric attribute would get split again and again to peel off one instance at a time. So with
+     * more categories it's the Gini impurity instead, 1 - the sum of the squared fractions, which for two
+     * categories is just twice the product anyway.
+     * @param counts The number of instances of each category in the set
+     * @param size The total number of instances in the set
      * @return The impurity value
      */
-    private float impurity(List<Instance> instances) {
-        if (instances.isEmpty()) return 0; // <- shouldn't happen
-        Map<String, Integer> tally = tally(instances);
-
-        if (tally.size() ==1) {   // assuming there's only 2 categories his assignment
-            return 0;
+    private static float impurity(int[] counts, int size) {
+        if (size == 0) return 0; // <- shouldn't happen
+        if (counts.length > 2) {
+            float sumOfSquares = 0;
+            for (int catCount : counts) {
+                if (catCount == size) return 0;     // all the same category
+                float fraction = (float) catCount / size;
+                sumOfSquares += fraction * fraction;
+            }
+            return 1 - sumOfSquares;
         }
         float impurity = 1;
-        for (int catCount : tally.values()) {
-            impurity = impurity * ((float) catCount / instances.size());
+        for (int catCount : counts) {
+            if (catCount == size) {   // all the same category
+                return 0;
+            } else if (catCount != 0) {
+                impurity = impurity * ((float) catCount / size);
+            }
         }
         return impurity;
     }
 
     /**
-     * Recursive method to classify an instance by traversing the decision tree.
-     * It does not use the category in the test instance. That's only used to confirm if the
-     * prediction is correct later.
-     * @param testInstance The instance to test
-     * @param decider The part of the tree to be traversed
-     * @return The predicted category
+     * @return The number of longs needed for a bitset over the given number of instances
      */
-    private String classify(Instance testInstance, Node decider) {
-        if (decider.isLeaf()) {
-            return decider.getCategory();
-        } else {
-            int attIndex = testSet.attNames.indexOf(decider.getAttribute());
-            if (testInstance.getAtt(attIndex)) {    // If given attribute of this instance is true
-                return classify(testInstance, decider.getIfTrueNode());
-            } else {
-                return classify(testInstance, decider.getIfFalseNode());
-            }
-        }
+    private static int bitSetLength(int numInstances) {
+        return (numInstances + 63) >>> 6;
     }
 
     /**
@@ -235,200 +1000,36 @@ public class DecTree {
      * decision tree constructed from the training data. Then it reports the results.
      */
     private void makePredictions() {
-        System.out.println(
+        Report.info(
                 "\nMaking predictions of each test instance using a decision tree:"
         );
+        boolean showInstances = Report.shows(Report.Level.NORMAL);
         int instanceNumber = 1;
         int successCount = 0;
         for (Instance test : testSet.allInstances) {
-            System.out.print("Instance " + instanceNumber + ": ");
-
-            System.out.print("Prediction = ");
-            String classPrediction = classify(test, decisionTree);
-            System.out.print(classPrediction + ", ");
-
-            System.out.print("Actual = " + test.getCategory() + "\t");
-            if (classPrediction.equals(test.getCategory())) {
-                System.out.println("Success!");
-                successCount++;
-            } else {
-                System.out.println("Fail...");
+            String classPrediction = forest != null ? classifyWithForest(test) : compiledTree.classify(test);
+            boolean success = classPrediction.equals(test.getCategory());
+            if (success) successCount++;
+            if (showInstances) {
+                Report.info("Instance " + instanceNumber + ": Prediction = " + classPrediction + ", Actual = " +
+                        test.getCategory() + "\t" + (success ? "Success!" : "Fail..."));
             }
+            Report.prediction(instanceNumber, classPrediction, test.getCategory());
             instanceNumber++;
         }
-        System.out.print("\nAccuracy: ");
         float accuracy = (float) successCount/testSet.allInstances.size();
-        System.out.println(accuracy*100f + "%");
+        Report.summary("\nAccuracy: " + accuracy*100f + "%");
+        Report.metric("correct", successCount);
+        Report.metric("total", testSet.allInstances.size());
+        Report.metric("accuracy", accuracy);
     }
 
     public static void main(String[] args) {
-        DecTree dt = new DecTree(args);
-        dt.makePredictions();
-    }
-}
-
-/**
- * Class used to store the instance data in a meaningful way
- */
- class Instance {
-
-    private final String category;
-    private final List<Boolean> values;
-
-    /**
-     * Instance constructor taking the instance's category and the rest of the values
-     * @param cat The instance's category
-     * @param s The scanner of the remaining line containing true and false boolean values
-     */
-    public Instance(String cat, Scanner s) {
-        category = cat;
-        // Store the list of values
-        values = new ArrayList<>();
-        while (s.hasNextBoolean()) {
-            values.add(s.nextBoolean());
-        }
-    }
-
-    /**
-     * Method to get the boolean value for the given attribute index
-     * @param index The index of the specific attribute needed
-     * @return the boolean assigned to the given attribute
-     */
-    public boolean getAtt(int index) {
-        return values.get(index);
-    }
-
-    /**
-     * Method to get this instance's category
-     * @return This instance's category
-     */
-    public String getCategory() {
-        return category;
-    }
-
-    /**
-     * Method to display this instance as a string
-     * @return The String representation of this instance
-     */
-    public String toString() {
-        StringBuilder ans = new StringBuilder(category);
-        ans.append("\t");
-        for (Boolean val : values) {
-            ans.append(val ? "true\t" : "false\t");
-        }
-        return ans.toString();
-    }
-
-}
-
-/**
- * Node class to build the tree. The same class is used for the branches and the leaves of the
- * tree. the isLeaf() method can be used to determine if it's a leaf.
- */
-class Node {
-    private final boolean isLeaf;
-
-    private String attribute;
-    private final Node ifTrueNode;
-    private final Node ifFalseNode;
-
-    /* Leaf node Attributes, is null otherwise */
-    private String category;
-    private float probability; // only time this value is called is when printing the report
-
-    /**
-     * Constructor for a non-leaf node
-     *
-     * @param attribute The attribute to check if true of false
-     * @param ifTrueNode The tree to traverse if the attribute is true
-     * @param ifFalseNode The tree to traverse if the attribute is false
-     */
-    public Node(String attribute, Node ifTrueNode, Node ifFalseNode) {
-        this.attribute = attribute;
-        this.ifTrueNode = ifTrueNode;
-        this.ifFalseNode = ifFalseNode;
-
-        isLeaf = false;
-    }
-
-    /**
-     * Constructor for a leaf node
-     *
-     * @param category The resulting category for the classifier
-     * @param probability The probability of this category being true according to the training data
-     */
-    public Node(String category, float probability) {
-        this.category = category;
-        this.probability = probability;
-        isLeaf = true;
-
-        ifTrueNode = null;
-        ifFalseNode = null;
-    }
-
-    /**
-     * Getter method for the attribute. Returns null if it doesn't exist.
-     * i.e. is a leaf node
-     * @return The node's attribute
-     */
-    public String getAttribute() {
-        return attribute;
-    }
-
-    /**
-     * Method to confirm if this node is a leaf node.
-     * @return boolean confirming if this node is leaf or not
-     */
-    public boolean isLeaf() {
-        return isLeaf;
-    }
-
-    /**
-     * Getter method for the Node if the attribute is true. Returns null if it doesn't exist.
-     * i.e. is a leaf node
-     *
-     * @return The ifTrueNode
-     */
-    public Node getIfTrueNode() {
-        return ifTrueNode;
-    }
-    /**
-     * Getter method for the Node if the attribute is false. Returns null if it doesn't exist.
-     * i.e. is a leaf node
-     *
-     * @return The ifFalseNode
-     */
-    public Node getIfFalseNode() {
-        return ifFalseNode;
-    }
-
-    /**
-     * Getter method for the category. Returns null if it doesn't exist.
-     * i.e. is a branch node
-     * @return This node's category
-     */
-    public String getCategory() {
-        return category;
-    }
-
-    /**
-     * Method used in recursive algorithm to print out the tree
-     * @param indent The string representing the indentation
-     */
-    public void report(String indent) {
-        if (isLeaf) {
-            if (probability==0){ //Error-checking
-                System.out.printf("%sUnknown%n", indent);
-            }else{
-                System.out.printf("%sClass %s, prob=%.2f%n", indent, category, probability);
-            }
+        DecTree dt = new DecTree(Report.setUp("decTree", args));
+        if (dt.modelFileToSave != null) {
+            dt.saveModelFile();
         } else {
-            System.out.printf("%s%s = True:%n", indent, attribute);
-            assert ifTrueNode != null;
-            ifTrueNode.report(indent+"\t");
-            System.out.printf("%s%s = False:%n", indent, attribute);
-            assert ifFalseNode != null;
-            ifFalseNode.report(indent+"\t");
+            dt.makePredictions();
         }
     }
 }
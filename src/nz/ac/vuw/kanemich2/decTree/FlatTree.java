@@ -0,0 +1,199 @@
+package nz.ac.vuw.kanemich2.decTree;
+
+import nz.ac.vuw.kanemich2.report.Report;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A decision tree compiled into flat arrays, so classifying an instance is a short loop over ints rather
+ * than following Node objects and looking up attribute names at every level.
+ * <br>
+ * The nodes are stored in pre-order, so the true child of a branch is always the next node and only the
+ * false child needs to be stored. Each node has a test, which is the attribute id for a branch, or
+ * ~(category id) for a leaf (so negative). The attribute and category ids are for the tree's own lists of
+ * attribute and category names (the ones from the training file, so all the trees of a forest share them),
+ * and bind() works out which column each attribute is in the data being classified.
+ * A branch on a numeric attribute also has a threshold, and goes to the true child if the instance's value is
+ * less than or equal to it.
+ */
+class FlatTree {
+    private final String[] attributes;      // the attribute names, indexed by attribute id
+    private final String[] categories;      // the category names, indexed by category id
+    private final int[] tests;              // for each node, its attribute id or ~(category id)
+    private final int[] falseChildren;      // for each branch, the index of its false child
+    private final float[] probabilities;    // for each leaf, the probability of its category
+    private final float[] thresholds;       // for each numeric branch its threshold, NaN otherwise, or null if none
+
+    private int[] columns;                  // tests, but with the attribute ids changed to columns of the data
+
+    FlatTree(String[] attributes, String[] categories, int[] tests, int[] falseChildren, float[] probabilities,
+             float[] thresholds) {
+        this.attributes = attributes;
+        this.categories = categories;
+        this.tests = tests;
+        this.falseChildren = falseChildren;
+        this.probabilities = probabilities;
+        this.thresholds = thresholds;
+        this.columns = tests;
+    }
+
+    /**
+     * Compiles a tree of Nodes into a FlatTree
+     * @param root The root of the tree
+     * @param attNames The attribute names from the training file, which become the attribute ids
+     * @param categories The category names from the training file, which become the category ids
+     * @return The compiled tree
+     */
+    static FlatTree compile(Node root, List<String> attNames, List<String> categories) {
+        int size = countNodes(root);
+        Compiler compiler = new Compiler(attNames, categories, size);
+        compiler.add(root);
+        return new FlatTree(attNames.toArray(new String[0]), categories.toArray(new String[0]),
+                compiler.tests, compiler.falseChildren, compiler.probabilities,
+                compiler.anyNumeric ? compiler.thresholds : null);
+    }
+
+    private static int countNodes(Node node) {
+        return node.isLeaf() ? 1 : 1 + countNodes(node.getIfTrueNode()) + countNodes(node.getIfFalseNode());
+    }
+
+    /**
+     * Fills in the arrays for compile(), one node at a time in pre-order.
+     */
+    private static class Compiler {
+        private final List<String> attNames;
+        private final List<String> categories;
+        private final int[] tests;
+        private final int[] falseChildren;
+        private final float[] probabilities;
+        private final float[] thresholds;
+        private boolean anyNumeric = false;
+        private int size = 0;
+
+        Compiler(List<String> attNames, List<String> categories, int numNodes) {
+            this.attNames = attNames;
+            this.categories = categories;
+            tests = new int[numNodes];
+            falseChildren = new int[numNodes];
+            probabilities = new float[numNodes];
+            thresholds = new float[numNodes];
+        }
+
+        void add(Node node) {
+            int index = size++;
+            thresholds[index] = node.getThreshold();
+            anyNumeric |= !Float.isNaN(thresholds[index]);
+            if (node.isLeaf()) {
+                tests[index] = ~categories.indexOf(node.getCategory());
+                probabilities[index] = node.getProbability();
+            } else {
+                tests[index] = attNames.indexOf(node.getAttribute());
+                add(node.getIfTrueNode());
+                falseChildren[index] = size;
+                add(node.getIfFalseNode());
+            }
+        }
+    }
+
+    /**
+     * Works out which column of the data to be classified each of the tree's attributes is in, from the
+     * attribute names of that data. Exits if one of them is missing.
+     * @param attNames The attribute names in the order they are in the data
+     */
+    void bind(List<String> attNames) {
+        int[] attributeColumns = new int[attributes.length];
+        for (int a = 0; a < attributes.length; a++) {
+            attributeColumns[a] = attNames.indexOf(attributes[a]);
+        }
+        columns = new int[tests.length];
+        for (int node = 0; node < tests.length; node++) {
+            int test = tests[node];
+            if (test >= 0 && attributeColumns[test] < 0) {
+                Report.error("The attribute " + attributes[test] + " used by the tree is missing from the data.");
+                System.exit(1);
+            }
+            columns[node] = test < 0 ? test : attributeColumns[test];
+        }
+    }
+
+    /**
+     * Classifies an instance by going down the tree from the root until it reaches a leaf.
+     * @param instance The instance to classify, which needs to have its values in the columns given to bind()
+     * @return The predicted category
+     */
+    String classify(Instance instance) {
+        return categories[classifyId(instance)];
+    }
+
+    /**
+     * Same as classify(), but gives the category id rather than its name
+     * @param instance The instance to classify
+     * @return The id of the predicted category
+     */
+    int classifyId(Instance instance) {
+        int[] columns = this.columns;
+        int node = 0;
+        int test;
+        if (thresholds == null) {
+            while ((test = columns[node]) >= 0) {
+                node = (instance.getAttBits(test >>> 6) & (1L << test)) != 0 ? node + 1 : falseChildren[node];
+            }
+        } else {
+            while ((test = columns[node]) >= 0) {
+                float threshold = thresholds[node];
+                boolean isTrue = Float.isNaN(threshold) ? (instance.getAttBits(test >>> 6) & (1L << test)) != 0 :
+                        instance.getNumber(test) <= threshold;
+                node = isTrue ? node + 1 : falseChildren[node];
+            }
+        }
+        return ~test;
+    }
+
+    /**
+     * Writes the nodes to a model file. The attribute and category names are written once for the whole
+     * file by ModelFile, rather than for each tree.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(tests.length);
+        for (int test : tests) out.writeInt(test);
+        for (int falseChild : falseChildren) out.writeInt(falseChild);
+        for (float probability : probabilities) out.writeFloat(probability);
+        out.writeBoolean(thresholds != null);
+        if (thresholds != null) {
+            for (float threshold : thresholds) out.writeFloat(threshold);
+        }
+    }
+
+    /**
+     * Reads the nodes written by writeTo() from a mapped model file.
+     * @param buffer The file, positioned at the start of the tree
+     * @param attributes The attribute names for the whole file
+     * @param categories The category names for the whole file
+     * @return The tree
+     */
+    static FlatTree readFrom(ByteBuffer buffer, String[] attributes, String[] categories) {
+        int numNodes = buffer.getInt();
+        int[] tests = ModelFile.readInts(buffer, numNodes);
+        int[] falseChildren = ModelFile.readInts(buffer, numNodes);
+        float[] probabilities = ModelFile.readFloats(buffer, numNodes);
+        float[] thresholds = buffer.get() != 0 ? ModelFile.readFloats(buffer, numNodes) : null;
+        return new FlatTree(attributes, categories, tests, falseChildren, probabilities, thresholds);
+    }
+
+    /**
+     * @return The attribute names the tree's attribute ids refer to
+     */
+    String[] attributes() {
+        return attributes;
+    }
+
+    /**
+     * @return The number of nodes in the tree, both branches and leaves
+     */
+    int size() {
+        return tests.length;
+    }
+}
@@ -0,0 +1,324 @@
+package nz.ac.vuw.kanemich2.decTree;
+
+import java.util.*;
+
+/**
+ * A decision tree that learns from one instance at a time (a Hoeffding tree, or VFDT), for training files
+ * too big to read in all at once. The instances aren't kept. Each leaf only keeps counts of each category
+ * for each value of each attribute, so the memory used depends on the size of the tree, not the number of
+ * instances.
+ * <br>
+ * Every GRACE_PERIOD instances that reach a leaf, it scores each attribute from the counts by its
+ * information gain. The leaf is split on the best attribute once the Hoeffding bound says that, with
+ * probability 1 - DELTA, it would still be the best after seeing every instance: when the best attribute's
+ * gain beats the second best by more than
+ * <pre>
+ *   epsilon = R * sqrt(ln(1/DELTA) / (2 * instances seen by the leaf))
+ * </pre>
+ * where R is the range of the gain, log2(number of categories). If the two are so close that epsilon drops
+ * below TIE_THRESHOLD, either will do and it splits anyway.
+ * <br>
+ * It uses information gain rather than DecTree's impurity, since the Hoeffding bound needs the range of
+ * the gain, and that's simple to give for entropy.
+ * <br>
+ * Numeric attributes are binned like DecTree does, but with the bins worked out from the first BIN_SAMPLE
+ * instances, since the rest haven't been read yet. The finished tree is turned into Nodes, so it's
+ * printed, compiled and classified the same way as any other tree.
+ */
+class HoeffdingTree {
+    static final int BIN_SAMPLE = 1000;
+    private static final int GRACE_PERIOD = 200;
+    private static final double DELTA = 1e-7;
+    private static final double TIE_THRESHOLD = 0.05;
+
+    private final List<String> attNames;
+    private final int numAttributes;
+    private final boolean[] numeric;
+    private final float[][] cuts;               // bin edges for the numeric attributes
+    private final List<String> categories = new ArrayList<>();
+    private final Map<String, Integer> categoryIds = new HashMap<>();
+    private long[] totalCounts = new long[0];   // instances of each category seen altogether
+    private final StreamNode root;
+    private long numInstances = 0;
+    private int numLeaves = 1;
+
+    /**
+     * A node of the tree while it's growing. It's a leaf until split, then a branch with two new leaves.
+     */
+    private class StreamNode {
+        /* Branch */
+        int attribute = -1;
+        int lastTrueBin;                        // for a numeric attribute, the last bin going to ifTrueNode
+        StreamNode ifTrueNode;
+        StreamNode ifFalseNode;
+
+        /* Leaf */
+        final boolean[] used;                   // the true/false attributes split on above this leaf
+        int capacity = 0;                       // the number of categories the arrays have room for
+        // the counts are longs, since a leaf can see any number of instances from an endless stream
+        long[] counts = new long[0];            // instances of each category seen by this leaf
+        long[] priorCounts = new long[0];       // what the parent's counts said about this side of its split
+        long[][] valueCounts;                   // for each attribute, the count of each category for each value
+        long seen = 0;
+        int seenSinceCheck = 0;
+
+        StreamNode(boolean[] used) {
+            this.used = used;
+            valueCounts = new long[numAttributes][];
+        }
+
+        /**
+         * Makes room in the arrays for any new categories
+         */
+        void ensureCapacity() {
+            int numCategories = categories.size();
+            if (numCategories <= capacity) return;
+            for (int a = 0; a < numAttributes; a++) {
+                if (used[a]) continue;
+                long[] grown = new long[numValues(a) * numCategories];
+                for (int v = 0; valueCounts[a] != null && v < numValues(a); v++) {
+                    System.arraycopy(valueCounts[a], v * capacity, grown, v * numCategories, capacity);
+                }
+                valueCounts[a] = grown;
+            }
+            counts = Arrays.copyOf(counts, numCategories);
+            priorCounts = Arrays.copyOf(priorCounts, numCategories);
+            capacity = numCategories;
+        }
+
+        void add(Instance instance, int category) {
+            ensureCapacity();
+            counts[category]++;
+            seen++;
+            seenSinceCheck++;
+            for (int a = 0; a < numAttributes; a++) {
+                if (!used[a]) valueCounts[a][valueOf(instance, a) * capacity + category]++;
+            }
+        }
+    }
+
+    /**
+     * Sets up an empty tree
+     * @param attNames The attribute names from the first line of the file
+     * @param sample The first instances of the file, used to find which attributes are numeric and their
+     *               bins. They still need to be given to learn() after.
+     */
+    HoeffdingTree(List<String> attNames, List<Instance> sample) {
+        this.attNames = attNames;
+        numAttributes = attNames.size();
+        numeric = new boolean[numAttributes];
+        cuts = new float[numAttributes][];
+        byte[][] sampleBins = new byte[numAttributes][];
+        for (int a = 0; a < numAttributes; a++) {
+            for (Instance instance : sample) {
+                if (instance.isNumeric(a)) {
+                    numeric[a] = true;
+                    DecTree.binNumericAttribute(sample, a, cuts, sampleBins);
+                    break;
+                }
+            }
+        }
+        root = new StreamNode(new boolean[numAttributes]);
+    }
+
+    /**
+     * Learns from one more instance: adds it to the counts of the leaf it reaches, and checks whether to
+     * split that leaf every GRACE_PERIOD instances.
+     * @param instance The training instance
+     */
+    void learn(Instance instance) {
+        Integer category = categoryIds.get(instance.getCategory());
+        if (category == null) {
+            category = categories.size();
+            categoryIds.put(instance.getCategory(), category);
+            categories.add(instance.getCategory());
+            totalCounts = Arrays.copyOf(totalCounts, categories.size());
+        }
+        totalCounts[category]++;
+        numInstances++;
+
+        StreamNode leaf = root;
+        while (leaf.attribute >= 0) {
+            leaf = goesTrue(leaf, instance) ? leaf.ifTrueNode : leaf.ifFalseNode;
+        }
+        leaf.add(instance, category);
+        if (leaf.seenSinceCheck >= GRACE_PERIOD) {
+            leaf.seenSinceCheck = 0;
+            trySplit(leaf);
+        }
+    }
+
+    private boolean goesTrue(StreamNode branch, Instance instance) {
+        if (numeric[branch.attribute]) {
+            return valueOf(instance, branch.attribute) <= branch.lastTrueBin;
+        }
+        return instance.getAtt(branch.attribute);
+    }
+
+    /**
+     * @return The value of an attribute as counted in the leaves: its bin if it's numeric, otherwise 1 for
+     * true and 0 for false
+     */
+    private int valueOf(Instance instance, int attribute) {
+        if (numeric[attribute]) return DecTree.binOf(cuts[attribute], instance.getNumber(attribute));
+        return instance.getAtt(attribute) ? 1 : 0;
+    }
+
+    private int numValues(int attribute) {
+        return numeric[attribute] ? cuts[attribute].length + 1 : 2;
+    }
+
+    /**
+     * Scores splitting a leaf on each of its attributes, and splits it on the best one if the Hoeffding
+     * bound says it's clearly the best.
+     */
+    private void trySplit(StreamNode leaf) {
+        int numCategories = leaf.capacity;
+        long size = leaf.seen;
+        double leafEntropy = entropy(leaf.counts, size);
+        if (leafEntropy == 0) return;
+
+        long[] trueCounts = new long[numCategories];
+        long[] falseCounts = new long[numCategories];
+        double bestGain = 0;        // not splitting at all counts as a gain of 0
+        double secondGain = 0;
+        int bestAtt = -1;
+        int bestBin = -1;
+        for (int a = 0; a < numAttributes; a++) {
+            if (leaf.used[a]) continue;
+            long[] counts = leaf.valueCounts[a];
+            double attributeBest = 0;
+            int attributeBestBin = -1;
+            // the true side is value 1 for true/false attributes, or bins 0 to k for numeric ones
+            int first = numeric[a] ? 0 : 1;
+            int last = numeric[a] ? numValues(a) - 2 : 1;
+            Arrays.fill(trueCounts, 0);
+            long trueSize = 0;
+            for (int value = first; value <= last; value++) {
+                for (int c = 0; c < numCategories; c++) {
+                    trueCounts[c] += counts[value * numCategories + c];
+                    trueSize += counts[value * numCategories + c];
+                }
+                if (trueSize == 0) continue;
+                if (trueSize == size) break;
+                for (int c = 0; c < numCategories; c++) falseCounts[c] = leaf.counts[c] - trueCounts[c];
+                double gain = leafEntropy - ((double) trueSize / size * entropy(trueCounts, trueSize) +
+                        (double) (size - trueSize) / size * entropy(falseCounts, size - trueSize));
+                if (gain > attributeBest) {
+                    attributeBest = gain;
+                    attributeBestBin = value;
+                }
+            }
+            if (attributeBest > bestGain) {
+                secondGain = bestGain;
+                bestGain = attributeBest;
+                bestAtt = a;
+                bestBin = attributeBestBin;
+            } else if (attributeBest > secondGain) {
+                secondGain = attributeBest;
+            }
+        }
+        if (bestAtt < 0) return;
+
+        double range = Math.log(Math.max(2, categories.size())) / Math.log(2);
+        double epsilon = range * Math.sqrt(Math.log(1 / DELTA) / (2.0 * size));
+        if (bestGain - secondGain > epsilon || epsilon < TIE_THRESHOLD) {
+            split(leaf, bestAtt, bestBin);
+        }
+    }
+
+    /**
+     * @return The entropy (in bits) of the categories of a set of instances
+     */
+    private static double entropy(long[] counts, long size) {
+        double entropy = 0;
+        for (long count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / size;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Turns a leaf into a branch with two new leaves. The new leaves start with no counts of their own, but
+     * remember how the leaf's counts split, to predict with until they've seen some instances.
+     */
+    private void split(StreamNode leaf, int attribute, int lastTrueBin) {   // lastTrueBin is 1 for true/false
+        boolean[] used = leaf.used;
+        if (!numeric[attribute]) {
+            used = used.clone();
+            used[attribute] = true;
+        }
+        leaf.attribute = attribute;
+        leaf.lastTrueBin = lastTrueBin;
+        leaf.ifTrueNode = new StreamNode(used);
+        leaf.ifFalseNode = new StreamNode(used);
+        int numCategories = leaf.capacity;
+        leaf.ifTrueNode.ensureCapacity();
+        leaf.ifFalseNode.ensureCapacity();
+        for (int value = numeric[attribute] ? 0 : 1; value <= lastTrueBin; value++) {
+            for (int c = 0; c < numCategories; c++) {
+                leaf.ifTrueNode.priorCounts[c] += leaf.valueCounts[attribute][value * numCategories + c];
+            }
+        }
+        for (int c = 0; c < numCategories; c++) {
+            leaf.ifFalseNode.priorCounts[c] = leaf.counts[c] - leaf.ifTrueNode.priorCounts[c];
+        }
+        // the branch doesn't need its counts any more
+        leaf.valueCounts = null;
+        leaf.counts = null;
+        leaf.priorCounts = null;
+        numLeaves++;
+    }
+
+    /**
+     * @return The tree as Nodes, to print and compile like the tree DecTree builds
+     */
+    Node toNode() {
+        return toNode(root);
+    }
+
+    private Node toNode(StreamNode node) {
+        if (node.attribute < 0) {
+            long[] counts = node.seen > 0 ? node.counts : node.priorCounts;
+            long size = 0;
+            for (long count : counts) size += count;
+            if (size == 0) {            // nothing to go on at all, so use every instance like DecTree does
+                counts = totalCounts;
+                size = numInstances;
+            }
+            int best = 0;
+            for (int c = 1; c < counts.length; c++) {
+                if (counts[c] > counts[best]) best = c;
+            }
+            return new Node(categories.get(best), (float) counts[best] / size);
+        }
+        Node ifTrueNode = toNode(node.ifTrueNode);
+        Node ifFalseNode = toNode(node.ifFalseNode);
+        if (numeric[node.attribute]) {
+            return new Node(attNames.get(node.attribute), cuts[node.attribute][node.lastTrueBin],
+                    ifTrueNode, ifFalseNode);
+        }
+        return new Node(attNames.get(node.attribute), ifTrueNode, ifFalseNode);
+    }
+
+    List<String> attNames() {
+        return attNames;
+    }
+
+    /**
+     * @return The categories in the order they were first seen, which is the order of their ids
+     */
+    List<String> categories() {
+        return categories;
+    }
+
+    long numInstances() {
+        return numInstances;
+    }
+
+    int numLeaves() {
+        return numLeaves;
+    }
+}
@@ -0,0 +1,113 @@
+package nz.ac.vuw.kanemich2.decTree;
+
+import java.util.Arrays;
+import java.util.Scanner;
+
+/**
+ * Class used to store the instance data in a meaningful way
+ */
+class Instance {
+
+    private final String category;
+    private long[] values = new long[1];    // one bit for each value
+    private float[] numbers = null;         // the numeric values, NaN for true/false ones, or null if there are none
+    private int numValues = 0;
+
+    /**
+     * Instance constructor taking the instance's category and the rest of the values
+     * @param cat The instance's category
+     * @param s The scanner of the remaining line containing true and false boolean values, or numbers
+     */
+    public Instance(String cat, Scanner s) {
+        category = cat;
+        // Store the true/false values as bits, and any numbers separately
+        while (s.hasNext()) {
+            if (numValues == values.length * 64) values = Arrays.copyOf(values, values.length * 2);
+            if (s.hasNextBoolean()) {
+                if (s.nextBoolean()) values[numValues >>> 6] |= 1L << numValues;
+            } else {
+                float number;
+                try {
+                    number = Float.parseFloat(s.next());
+                } catch (NumberFormatException e) {
+                    break;
+                }
+                if (numbers == null) {
+                    numbers = new float[values.length * 64];
+                    Arrays.fill(numbers, Float.NaN);
+                } else if (numValues == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, values.length * 64);
+                    Arrays.fill(numbers, numValues, numbers.length, Float.NaN);
+                }
+                numbers[numValues] = number;
+            }
+            numValues++;
+        }
+        values = Arrays.copyOf(values, (numValues + 63) >>> 6);
+        if (numbers != null) numbers = Arrays.copyOf(numbers, numValues);
+    }
+
+    /**
+     * Method to get the boolean value for the given attribute index
+     * @param index The index of the specific attribute needed
+     * @return the boolean assigned to the given attribute
+     */
+    public boolean getAtt(int index) {
+        if (index >= numValues) throw new IndexOutOfBoundsException(index);
+        return (values[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Method to check if the given attribute is a number rather than true or false
+     * @param index The index of the attribute
+     * @return true if it's a number
+     */
+    public boolean isNumeric(int index) {
+        return numbers != null && index < numbers.length && !Float.isNaN(numbers[index]);
+    }
+
+    /**
+     * Method to get the numeric value for the given attribute index. True and false count as 1 and 0.
+     * @param index The index of the specific attribute needed
+     * @return the number assigned to the given attribute
+     */
+    public float getNumber(int index) {
+        if (isNumeric(index)) return numbers[index];
+        return getAtt(index) ? 1 : 0;
+    }
+
+    /**
+     * Method to get 64 of the values at once, as bits
+     * @param word Which 64 values, so the bits are for attributes word*64 to word*64+63
+     * @return The bits, or 0 if there aren't any values that far along
+     */
+    long getAttBits(int word) {
+        return word < values.length ? values[word] : 0;
+    }
+
+    /**
+     * Method to get this instance's category
+     * @return This instance's category
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Method to display this instance as a string
+     * @return The String representation of this instance
+     */
+    public String toString() {
+        StringBuilder ans = new StringBuilder(category);
+        ans.append("\t");
+        for (int i = 0; i < numValues; i++) {
+            if (isNumeric(i)) {
+                ans.append(numbers[i]).append("\t");
+            } else {
+                ans.append(getAtt(i) ? "true\t" : "false\t");
+            }
+        }
+        return ans.toString();
+    }
+
+}
@@ -0,0 +1,126 @@
+package nz.ac.vuw.kanemich2.decTree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the binary model file, which holds a trained tree (or forest) so later runs can
+ * classify test files without reading the training file and building the tree again.
+ * <br>
+ * The file is read by memory-mapping it and copying each array straight out of it, so there's nothing to
+ * parse apart from the names, and any number of processes loading the same file share it in the OS
+ * page cache.
+ * <br>
+ * Layout (big-endian, as written by DataOutputStream):
+ * <pre>
+ *   int   MAGIC, int VERSION
+ *   int   number of attributes, then each attribute name (int length, UTF-8 bytes)
+ *   int   number of categories, then each category name
+ *   int   number of trees, then each tree as written by FlatTree.writeTo():
+ *     int   number of nodes
+ *     int   tests[nodes], int false children[nodes], float probabilities[nodes]
+ *     byte  1 if there are numeric branches, followed by float thresholds[nodes]
+ * </pre>
+ */
+class ModelFile {
+    static final int MAGIC = 0x44545245;     // "DTRE"
+    static final int VERSION = 1;
+
+    /**
+     * What's loaded back from a model file: the attribute and category names, and one tree or a forest.
+     */
+    record Contents(String[] attributes, String[] categories, FlatTree[] trees) {}
+
+    /**
+     * Checks the first few bytes of the file to see if it's a model file rather than a text file.
+     * @param fileName The name of the file
+     * @return true if it starts with the model file's magic number
+     */
+    static boolean isModelFile(String fileName) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;   // missing or too short, either way not a model file
+        }
+    }
+
+    /**
+     * Writes the model file.
+     * @param fileName The name of the file to write
+     * @param attributes The attribute names the trees' attribute ids refer to
+     * @param categories The category names the trees' category ids refer to
+     * @param trees The trees, just one unless it's a forest
+     */
+    static void save(String fileName, String[] attributes, String[] categories, FlatTree[] trees) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileName), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeStrings(out, attributes);
+            writeStrings(out, categories);
+            out.writeInt(trees.length);
+            for (FlatTree tree : trees) tree.writeTo(out);
+        }
+    }
+
+    /**
+     * Memory-maps and loads a model file.
+     * @param fileName The name of the file to load
+     * @return The contents of the file
+     */
+    static Contents load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a decision tree model file, or from a different version: " + fileName);
+            }
+            String[] attributes = readStrings(buffer);
+            String[] categories = readStrings(buffer);
+            FlatTree[] trees = new FlatTree[buffer.getInt()];
+            for (int t = 0; t < trees.length; t++) {
+                trees[t] = FlatTree.readFrom(buffer, attributes, categories);
+            }
+            return new Contents(attributes, categories, trees);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    /* Bulk copies out of the mapped file, moving the buffer along past what was read */
+
+    static int[] readInts(ByteBuffer buffer, int count) {
+        int[] array = new int[count];
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return array;
+    }
+
+    static float[] readFloats(ByteBuffer buffer, int count) {
+        float[] array = new float[count];
+        buffer.asFloatBuffer().get(array);
+        buffer.position(buffer.position() + count * Float.BYTES);
+        return array;
+    }
+}
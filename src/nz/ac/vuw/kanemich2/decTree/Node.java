@@ -0,0 +1,150 @@
+package nz.ac.vuw.kanemich2.decTree;
+
+import nz.ac.vuw.kanemich2.report.Report;
+
+/**
+ * Node class to build the tree. The same class is used for the branches and the leaves of the
+ * tree. the isLeaf() method can be used to determine if it's a leaf.
+ */
+class Node {
+    private final boolean isLeaf;
+
+    private String attribute;
+    private float threshold = Float.NaN;    // for a numeric attribute, true is the attribute <= threshold
+    private final Node ifTrueNode;
+    private final Node ifFalseNode;
+
+    /* Leaf node Attributes, is null otherwise */
+    private String category;
+    private float probability; // only used when printing the report and compiling the tree
+
+    /**
+     * Constructor for a non-leaf node
+     *
+     * @param attribute The attribute to check if true of false
+     * @param ifTrueNode The tree to traverse if the attribute is true
+     * @param ifFalseNode The tree to traverse if the attribute is false
+     */
+    public Node(String attribute, Node ifTrueNode, Node ifFalseNode) {
+        this.attribute = attribute;
+        this.ifTrueNode = ifTrueNode;
+        this.ifFalseNode = ifFalseNode;
+
+        isLeaf = false;
+    }
+
+    /**
+     * Constructor for a non-leaf node that splits on a numeric attribute
+     *
+     * @param attribute The attribute to compare with the threshold
+     * @param threshold The largest value of the attribute to go to ifTrueNode
+     * @param ifTrueNode The tree to traverse if the attribute is less than or equal to the threshold
+     * @param ifFalseNode The tree to traverse if the attribute is greater than the threshold
+     */
+    public Node(String attribute, float threshold, Node ifTrueNode, Node ifFalseNode) {
+        this(attribute, ifTrueNode, ifFalseNode);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Constructor for a leaf node
+     *
+     * @param category The resulting category for the classifier
+     * @param probability The probability of this category being true according to the training data
+     */
+    public Node(String category, float probability) {
+        this.category = category;
+        this.probability = probability;
+        isLeaf = true;
+
+        ifTrueNode = null;
+        ifFalseNode = null;
+    }
+
+    /**
+     * Getter method for the attribute. Returns null if it doesn't exist.
+     * i.e. is a leaf node
+     * @return The node's attribute
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Method to confirm if this node is a leaf node.
+     * @return boolean confirming if this node is leaf or not
+     */
+    public boolean isLeaf() {
+        return isLeaf;
+    }
+
+    /**
+     * Getter method for the Node if the attribute is true. Returns null if it doesn't exist.
+     * i.e. is a leaf node
+     *
+     * @return The ifTrueNode
+     */
+    public Node getIfTrueNode() {
+        return ifTrueNode;
+    }
+    /**
+     * Getter method for the Node if the attribute is false. Returns null if it doesn't exist.
+     * i.e. is a leaf node
+     *
+     * @return The ifFalseNode
+     */
+    public Node getIfFalseNode() {
+        return ifFalseNode;
+    }
+
+    /**
+     * Getter method for the threshold of a numeric attribute. Returns NaN for a true/false attribute or a leaf.
+     * @return The node's threshold
+     */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Getter method for the probability of a leaf's category. Returns 0 for a branch node.
+     * @return This node's probability
+     */
+    public float getProbability() {
+        return probability;
+    }
+
+    /**
+     * Getter method for the category. Returns null if it doesn't exist.
+     * i.e. is a branch node
+     * @return This node's category
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Method used in recursive algorithm to print out the tree
+     * @param indent The string representing the indentation
+     */
+    public void report(String indent) {
+        if (isLeaf) {
+            if (probability==0){ //Error-checking
+                Report.printf(Report.Level.NORMAL, "%sUnknown%n", indent);
+            }else{
+                Report.printf(Report.Level.NORMAL, "%sClass %s, prob=%.2f%n", indent, category, probability);
+            }
+        } else if (!Float.isNaN(threshold)) {
+            Report.printf(Report.Level.NORMAL, "%s%s <= %s:%n", indent, attribute, threshold);
+            ifTrueNode.report(indent+"\t");
+            Report.printf(Report.Level.NORMAL, "%s%s > %s:%n", indent, attribute, threshold);
+            ifFalseNode.report(indent+"\t");
+        } else {
+            Report.printf(Report.Level.NORMAL, "%s%s = True:%n", indent, attribute);
+            assert ifTrueNode != null;
+            ifTrueNode.report(indent+"\t");
+            Report.printf(Report.Level.NORMAL, "%s%s = False:%n", indent, attribute);
+            assert ifFalseNode != null;
+            ifFalseNode.report(indent+"\t");
+        }
+    }
+}
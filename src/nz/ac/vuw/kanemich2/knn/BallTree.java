@@ -0,0 +1,105 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Ball tree index. Each node keeps the centre of its wines (in normalised space) and the radius
+ * of a ball around that centre holding all of them. Nothing in the node can be closer to the query
+ * than the distance to the centre minus the radius, which still prunes well when there are too
+ * many features for a KD-tree.
+ */
+class BallTree extends SpatialIndex {
+    // The bounds are in normalised space and the distances aren't, so allow for the rounding
+    // difference between the two before skipping a node
+    private static final double TOLERANCE = 1e-6;
+
+    private double[] centres = new double[16 * numFeatures];
+    private double[] radii = new double[16];
+
+    BallTree(float[] values, int numFeatures, double[] inverseRangesSquared) {
+        super(values, numFeatures, inverseRangesSquared);
+    }
+
+    @Override
+    String name() {
+        return "ball tree";
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        centres = Arrays.copyOf(centres, capacity * numFeatures);
+        radii = Arrays.copyOf(radii, capacity);
+    }
+
+    @Override
+    protected void nodeBuilt(int node, int from, int to) {
+        int centre = node * numFeatures;
+        for (int i = from; i < to; i++) {
+            int row = order[i] * numFeatures;
+            for (int f = 0; f < numFeatures; f++) {
+                centres[centre + f] += values[row + f] * scale[f];
+            }
+        }
+        for (int f = 0; f < numFeatures; f++) {
+            centres[centre + f] /= (to - from);
+        }
+        double radius = 0;
+        for (int i = from; i < to; i++) {
+            radius = Math.max(radius, distanceToCentre(node, values, order[i] * numFeatures));
+        }
+        radii[node] = radius;
+    }
+
+    @Override
+    protected void writeBounds(DataOutputStream out) throws IOException {
+        for (int i = 0; i < nodeCount * numFeatures; i++) out.writeDouble(centres[i]);
+        for (int node = 0; node < nodeCount; node++) out.writeDouble(radii[node]);
+    }
+
+    @Override
+    protected void readBounds(ByteBuffer buffer) {
+        centres = IndexFile.readDoubles(buffer, nodeCount * numFeatures);
+        radii = IndexFile.readDoubles(buffer, nodeCount);
+    }
+
+    @Override
+    protected void searchNode(int node, float[] query, int queryOffset, NeighbourHeap heap) {
+        if (left[node] < 0) {
+            searchLeaf(node, query, queryOffset, heap);
+            return;
+        }
+        // go into the child whose centre is closer first, it's more likely to tighten the bound
+        double leftDistance = distanceToCentre(left[node], query, queryOffset);
+        double rightDistance = distanceToCentre(right[node], query, queryOffset);
+        if (leftDistance <= rightDistance) {
+            searchChild(left[node], leftDistance, query, queryOffset, heap);
+            searchChild(right[node], rightDistance, query, queryOffset, heap);
+        } else {
+            searchChild(right[node], rightDistance, query, queryOffset, heap);
+            searchChild(left[node], leftDistance, query, queryOffset, heap);
+        }
+    }
+
+    private void searchChild(int node, double centreDistance, float[] query, int queryOffset, NeighbourHeap heap) {
+        double bound = centreDistance - radii[node];
+        if (bound <= 0 || bound * bound <= heap.worstDistance() * (1 + TOLERANCE)) {
+            searchNode(node, query, queryOffset, heap);
+        }
+    }
+
+    /**
+     * @return The (not squared) distance in normalised space from a node's centre to a wine
+     */
+    private double distanceToCentre(int node, float[] wine, int wineOffset) {
+        int centre = node * numFeatures;
+        double distanceSquared = 0;
+        for (int f = 0; f < numFeatures; f++) {
+            double difference = wine[wineOffset + f] * scale[f] - centres[centre + f];
+            distanceSquared += difference * difference;
+        }
+        return Math.sqrt(distanceSquared);
+    }
+}
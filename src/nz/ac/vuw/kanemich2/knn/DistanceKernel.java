@@ -0,0 +1,68 @@
+package nz.ac.vuw.kanemich2.knn;
+
+/**
+ * Works out the distances from one query wine to a whole block of training wines at a time.
+ * <br>
+ * The training wines are read straight out of the flat row-major array they're already stored in, BLOCK_SIZE
+ * wines at a time, rather than being copied into a layout of their own, so the training set is only held in
+ * memory once. Going along the array in order is what the cache and the prefetcher like best, so reading it
+ * as it is costs nothing over a copy.
+ * <br>
+ * Each wine's total is built up in the same order and with the same float/double steps as
+ * KNN.normalisedDistanceSquared, so the results are identical to the scalar version (a tolerance of 0),
+ * which keeps the predictions the same as the scalar path and the search indexes.
+ */
+class DistanceKernel {
+    static final int BLOCK_SIZE = 64;
+
+    private final float[] values;
+    private final int numFeatures;
+    private final int numWines;
+    private final double[] inverseRangesSquared;
+
+    /**
+     * @param values The training wines' features, row-major. They're used as they are, not copied.
+     * @param numFeatures The number of features per wine
+     * @param inverseRangesSquared 1/R^2 for each feature
+     */
+    DistanceKernel(float[] values, int numFeatures, double[] inverseRangesSquared) {
+        this.values = values;
+        this.numFeatures = numFeatures;
+        this.inverseRangesSquared = inverseRangesSquared;
+        numWines = values.length / numFeatures;
+    }
+
+    /**
+     * @return The number of blocks the training wines take up
+     */
+    int numBlocks() {
+        return (numWines + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * @return The number of wines in the block, BLOCK_SIZE apart from the last one
+     */
+    int blockLength(int block) {
+        return Math.min(BLOCK_SIZE, numWines - block * BLOCK_SIZE);
+    }
+
+    /**
+     * Works out the squared normalised distance from the query to every wine in the block.
+     * @param query The array holding the query wine's features
+     * @param queryOffset Where the query wine starts in the array
+     * @param block Which block of training wines, wine (block * BLOCK_SIZE + i) ends up in distances[i]
+     * @param distances Where to put the distances, at least BLOCK_SIZE long
+     */
+    void distances(float[] query, int queryOffset, int block, double[] distances) {
+        int length = blockLength(block);
+        int index = block * BLOCK_SIZE * numFeatures;
+        for (int i = 0; i < length; i++) {
+            double distanceSquared = 0;
+            for (int f = 0; f < numFeatures; f++, index++) {
+                double difference = query[queryOffset + f] - values[index];
+                distanceSquared += difference * difference * inverseRangesSquared[f];
+            }
+            distances[i] = distanceSquared;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbour search using a hierarchical navigable small-world (HNSW) graph.
+ * <br>
+ * Every training wine is a node in the bottom layer of the graph, linked to some of its close neighbours.
+ * A random few also appear in the layers above, which have fewer nodes and so longer links. A search starts
+ * at the top, greedily walks towards the query in each layer, then does a wider beam search in the bottom
+ * layer. It doesn't look at every training wine, so it can miss some of the true nearest neighbours.
+ * <br>
+ * The two settings trade speed for recall: degree is the number of links each node keeps (twice that in
+ * the bottom layer), and beamWidth is how many candidates the bottom-layer search keeps at once. Higher
+ * values for either find more of the true neighbours but take longer.
+ */
+class HnswGraph {
+    static final int DEFAULT_DEGREE = 16;
+    static final int DEFAULT_BEAM_WIDTH = 64;
+    private static final int CONSTRUCTION_BEAM_WIDTH = 100;
+
+    private final float[] values;
+    private final int numFeatures;
+    private final double[] inverseRangesSquared;
+    private final int degree;
+    private final int beamWidth;
+    private final double levelMultiplier;
+    private final Random random = new Random(307);  // fixed seed so the same training set gives the same graph
+
+    // links[node][layer] holds the number of links in [0], followed by the linked nodes
+    private final int[][][] links;
+    private int entryPoint = -1;
+    private int topLayer = -1;
+
+    /**
+     * Builds the graph by adding the training wines one at a time.
+     * @param values The training wines' features, row-major
+     * @param numFeatures The number of features per wine
+     * @param inverseRangesSquared 1/R^2 for each feature
+     * @param degree The number of links each node keeps per layer
+     * @param beamWidth The number of candidates kept while searching
+     */
+    HnswGraph(float[] values, int numFeatures, double[] inverseRangesSquared, int degree, int beamWidth) {
+        this(values, numFeatures, inverseRangesSquared, degree, beamWidth, new int[values.length / numFeatures][][]);
+        int numWines = links.length;
+        Searcher builder = new Searcher(Math.max(beamWidth, CONSTRUCTION_BEAM_WIDTH), null);
+        for (int wine = 0; wine < numWines; wine++) {
+            insert(wine, builder);
+        }
+    }
+
+    /**
+     * Sets up the graph around the given links without building anything, used when loading.
+     */
+    private HnswGraph(float[] values, int numFeatures, double[] inverseRangesSquared, int degree, int beamWidth,
+                      int[][][] links) {
+        this.values = values;
+        this.numFeatures = numFeatures;
+        this.inverseRangesSquared = inverseRangesSquared;
+        this.degree = degree;
+        this.beamWidth = beamWidth;
+        this.links = links;
+        levelMultiplier = 1 / Math.log(Math.max(degree, 2));
+    }
+
+    /**
+     * Writes the graph to an index file, see IndexFile. Each node is written as its number of layers,
+     * then for each layer the number of links followed by the links.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(degree);
+        out.writeInt(beamWidth);
+        out.writeInt(entryPoint);
+        out.writeInt(topLayer);
+        for (int[][] nodeLinks : links) {
+            out.writeInt(nodeLinks.length);
+            for (int[] layerLinks : nodeLinks) {
+                IndexFile.writeInts(out, layerLinks, layerLinks[0] + 1);
+            }
+        }
+    }
+
+    /**
+     * Reads back a graph written by writeTo, without having to build it again.
+     * @param buffer The index file, positioned at the start of the graph
+     * @return The loaded graph
+     */
+    static HnswGraph readFrom(ByteBuffer buffer, float[] values, int numFeatures, double[] inverseRangesSquared) {
+        int degree = buffer.getInt();
+        int beamWidth = buffer.getInt();
+        int entryPoint = buffer.getInt();
+        int topLayer = buffer.getInt();
+        int[][][] links = new int[values.length / numFeatures][][];
+        HnswGraph graph = new HnswGraph(values, numFeatures, inverseRangesSquared, degree, beamWidth, links);
+        for (int node = 0; node < links.length; node++) {
+            links[node] = new int[buffer.getInt()][];
+            for (int layer = 0; layer < links[node].length; layer++) {
+                int count = buffer.getInt();
+                // room for as many links as when it was built, though nothing gets added after loading
+                int[] layerLinks = new int[graph.maxLinks(layer) + 1];
+                layerLinks[0] = count;
+                buffer.asIntBuffer().get(layerLinks, 1, count);
+                buffer.position(buffer.position() + count * Integer.BYTES);
+                links[node][layer] = layerLinks;
+            }
+        }
+        graph.entryPoint = entryPoint;
+        graph.topLayer = topLayer;
+        return graph;
+    }
+
+    /**
+     * @return The number of links each node keeps per layer
+     */
+    int degree() {
+        return degree;
+    }
+
+    /**
+     * @return The number of candidates kept while searching
+     */
+    int beamWidth() {
+        return beamWidth;
+    }
+
+    /**
+     * The beam width only matters when searching, so a graph loaded from an index file can be searched with a
+     * different one without building it again.
+     * @param beamWidth The number of candidates kept while searching
+     * @return A graph sharing this one's links, searched with the given beam width (this one if it's the same)
+     */
+    HnswGraph withBeamWidth(int beamWidth) {
+        if (beamWidth == this.beamWidth) return this;
+        HnswGraph graph = new HnswGraph(values, numFeatures, inverseRangesSquared, degree, beamWidth, links);
+        graph.entryPoint = entryPoint;
+        graph.topLayer = topLayer;
+        return graph;
+    }
+
+    /**
+     * @param k The number of neighbours each search needs to find. The beam is widened to k if it's narrower,
+     *          or a search could never return k of them.
+     * @param excluded Training wine indices to leave out of the results (the removed wines), or null. The
+     *                 search still goes through them to get to the others.
+     * @return A new searcher for this graph. Each thread needs its own.
+     */
+    Searcher newSearcher(int k, BitSet excluded) {
+        return new Searcher(Math.max(beamWidth, k), excluded);
+    }
+
+    private int maxLinks(int layer) {
+        return layer == 0 ? 2 * degree : degree;
+    }
+
+    private double distance(int wine, int other) {
+        return KNN.normalisedDistanceSquared(values, wine * numFeatures, values, other * numFeatures,
+                inverseRangesSquared);
+    }
+
+    private void insert(int wine, Searcher builder) {
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        links[wine] = new int[level + 1][];
+        for (int layer = 0; layer <= level; layer++) {
+            links[wine][layer] = new int[maxLinks(layer) + 1];
+        }
+        if (entryPoint < 0) {
+            entryPoint = wine;
+            topLayer = level;
+            return;
+        }
+        int offset = wine * numFeatures;
+        int nearest = entryPoint;
+        for (int layer = topLayer; layer > level; layer--) {
+            nearest = builder.greedy(values, offset, nearest, layer);
+        }
+        for (int layer = Math.min(level, topLayer); layer >= 0; layer--) {
+            NeighbourHeap found = builder.searchLayer(values, offset, nearest, layer);
+            int[] candidates = found.sortedIndices();
+            nearest = candidates[0];
+            int[] chosen = selectNeighbours(wine, candidates, maxLinks(layer));
+            int[] wineLinks = links[wine][layer];
+            for (int neighbour : chosen) {
+                wineLinks[++wineLinks[0]] = neighbour;
+                addLink(neighbour, wine, layer);
+            }
+        }
+        if (level > topLayer) {
+            topLayer = level;
+            entryPoint = wine;
+        }
+    }
+
+    /**
+     * Adds a link from node to newLink, pruning node's links back down if it now has too many.
+     */
+    private void addLink(int node, int newLink, int layer) {
+        int[] nodeLinks = links[node][layer];
+        if (nodeLinks[0] < nodeLinks.length - 1) {
+            nodeLinks[++nodeLinks[0]] = newLink;
+            return;
+        }
+        int[] candidates = new int[nodeLinks[0] + 1];
+        double[] distances = new double[candidates.length];
+        for (int i = 0; i < nodeLinks[0]; i++) {
+            candidates[i] = nodeLinks[i + 1];
+        }
+        candidates[nodeLinks[0]] = newLink;
+        for (int i = 0; i < candidates.length; i++) {
+            distances[i] = distance(node, candidates[i]);
+        }
+        // sort closest first (insertion sort, there are only a few links)
+        for (int i = 1; i < candidates.length; i++) {
+            for (int j = i; j > 0 && distances[j - 1] > distances[j]; j--) {
+                double d = distances[j]; distances[j] = distances[j - 1]; distances[j - 1] = d;
+                int c = candidates[j]; candidates[j] = candidates[j - 1]; candidates[j - 1] = c;
+            }
+        }
+        int[] chosen = selectNeighbours(node, candidates, nodeLinks.length - 1);
+        nodeLinks[0] = chosen.length;
+        System.arraycopy(chosen, 0, nodeLinks, 1, chosen.length);
+    }
+
+    /**
+     * The neighbour selection heuristic from the HNSW paper: going from closest to furthest, a candidate is
+     * only kept if it's closer to the wine than to any neighbour already kept. This spreads the links out in
+     * different directions instead of bunching them up in one cluster. Any space left is filled with the
+     * closest of the skipped candidates.
+     * @param candidates The candidates, closest first
+     */
+    private int[] selectNeighbours(int wine, int[] candidates, int max) {
+        int[] chosen = new int[Math.min(max, candidates.length)];
+        boolean[] used = new boolean[candidates.length];
+        int count = 0;
+        for (int i = 0; i < candidates.length && count < chosen.length; i++) {
+            double toWine = distance(wine, candidates[i]);
+            boolean keep = true;
+            for (int j = 0; j < count && keep; j++) {
+                if (distance(candidates[i], chosen[j]) < toWine) keep = false;
+            }
+            if (keep) {
+                chosen[count++] = candidates[i];
+                used[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && count < chosen.length; i++) {
+            if (!used[i]) chosen[count++] = candidates[i];
+        }
+        return chosen;
+    }
+
+    /**
+     * The working state for searching the graph. It's reused from one search to the next so a search
+     * doesn't allocate anything.
+     */
+    final class Searcher {
+        private final int[] visited = new int[links.length];   // the search number each node was last visited in
+        private int searchNumber = 0;
+        private final NeighbourHeap results;
+        // min-heap of nodes still to expand, closest on top
+        private double[] candidateDistances = new double[64];
+        private int[] candidates = new int[64];
+        private int numCandidates = 0;
+
+        private Searcher(int width, BitSet excluded) {
+            results = new NeighbourHeap(Math.min(width, Math.max(links.length, 1)), excluded);
+        }
+
+        /**
+         * Finds approximate nearest neighbours of the query and puts them in the heap.
+         * @param query The array holding the query wine's features
+         * @param queryOffset Where the query wine starts in the array
+         * @param heap The heap to fill, sized to the k value
+         */
+        void search(float[] query, int queryOffset, NeighbourHeap heap) {
+            if (entryPoint < 0) return;
+            int nearest = entryPoint;
+            for (int layer = topLayer; layer > 0; layer--) {
+                nearest = greedy(query, queryOffset, nearest, layer);
+            }
+            searchLayer(query, queryOffset, nearest, 0);
+            for (int i = 0; i < results.size(); i++) {
+                heap.offer(results.distanceAt(i), results.indexAt(i));
+            }
+        }
+
+        /**
+         * Walks from start to whichever linked node is closer to the query, until none are.
+         * @return The closest node found
+         */
+        private int greedy(float[] query, int queryOffset, int start, int layer) {
+            int current = start;
+            double currentDistance = KNN.normalisedDistanceSquared(query, queryOffset, values,
+                    current * numFeatures, inverseRangesSquared);
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                int[] currentLinks = links[current][layer];
+                for (int i = 1; i <= currentLinks[0]; i++) {
+                    int next = currentLinks[i];
+                    double d = KNN.normalisedDistanceSquared(query, queryOffset, values, next * numFeatures,
+                            inverseRangesSquared);
+                    if (d < currentDistance) {
+                        currentDistance = d;
+                        current = next;
+                        moved = true;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Beam search within one layer, starting from start.
+         * @return The heap of the closest nodes found, as wide as the beam
+         */
+        private NeighbourHeap searchLayer(float[] query, int queryOffset, int start, int layer) {
+            searchNumber++;
+            results.clear();
+            numCandidates = 0;
+            double startDistance = KNN.normalisedDistanceSquared(query, queryOffset, values, start * numFeatures,
+                    inverseRangesSquared);
+            visited[start] = searchNumber;
+            results.offer(startDistance, start);
+            pushCandidate(startDistance, start);
+            while (numCandidates > 0) {
+                double closest = candidateDistances[0];
+                int node = popCandidate();
+                if (closest > results.worstDistance()) break;   // nothing left that could improve the results
+                int[] nodeLinks = links[node][layer];
+                for (int i = 1; i <= nodeLinks[0]; i++) {
+                    int next = nodeLinks[i];
+                    if (visited[next] == searchNumber) continue;
+                    visited[next] = searchNumber;
+                    double d = KNN.normalisedDistanceSquared(query, queryOffset, values, next * numFeatures,
+                            inverseRangesSquared);
+                    if (d < results.worstDistance()) {
+                        results.offer(d, next);
+                        pushCandidate(d, next);
+                    }
+                }
+            }
+            return results;
+        }
+
+        private void pushCandidate(double distance, int node) {
+            if (numCandidates == candidates.length) {
+                candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                candidateDistances = Arrays.copyOf(candidateDistances, numCandidates * 2);
+            }
+            int i = numCandidates++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (candidateDistances[parent] <= distance) break;
+                candidateDistances[i] = candidateDistances[parent];
+                candidates[i] = candidates[parent];
+                i = parent;
+            }
+            candidateDistances[i] = distance;
+            candidates[i] = node;
+        }
+
+        private int popCandidate() {
+            int top = candidates[0];
+            double distance = candidateDistances[--numCandidates];
+            int node = candidates[numCandidates];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= numCandidates) break;
+                if (child + 1 < numCandidates && candidateDistances[child + 1] < candidateDistances[child]) child++;
+                if (candidateDistances[child] >= distance) break;
+                candidateDistances[i] = candidateDistances[child];
+                candidates[i] = candidates[child];
+                i = child;
+            }
+            candidateDistances[i] = distance;
+            candidates[i] = node;
+            return top;
+        }
+    }
+}
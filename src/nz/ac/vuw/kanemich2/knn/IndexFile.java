@@ -0,0 +1,139 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the binary index file, which holds everything KNN works out from the training file so
+ * a later run can skip reading the text and finding the ranges, and skip building the search structure.
+ * <br>
+ * The file is read by memory-mapping it and copying each section straight into its array, so there's no
+ * parsing at all, and the file stays in the OS page cache to be shared with any other process loading it.
+ * <br>
+ * Layout (big-endian, as written by DataOutputStream):
+ * <pre>
+ *   int   MAGIC, int VERSION
+ *   int   number of wines, int number of features
+ *   float ranges[features]
+ *   int   classes[wines]
+ *   float values[wines * features]      the training wines, row-major
+ *   byte  search structure: NONE, KD_TREE, BALL_TREE or GRAPH, followed by that structure's own data
+ * </pre>
+ * A single mapping is limited to 2GB, which is the limit on the file size.
+ */
+class IndexFile {
+    static final int MAGIC = 0x4B4E4E49;     // "KNNI"
+    static final int VERSION = 1;
+    static final byte NONE = 0;
+    static final byte KD_TREE = 1;
+    static final byte BALL_TREE = 2;
+    static final byte GRAPH = 3;
+
+    /**
+     * What's loaded back from an index file. Only one of index and approximateIndex can be non-null.
+     */
+    record Contents(float[] values, int[] classifiers, int numFeatures, float[] ranges,
+                    SpatialIndex index, HnswGraph approximateIndex) {}
+
+    /**
+     * Checks the first few bytes of the file to see if it's an index file rather than a text file.
+     * @param fileName The name of the file
+     * @return true if it starts with the index file's magic number
+     */
+    static boolean isIndexFile(String fileName) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;   // missing or too short, either way not an index file
+        }
+    }
+
+    /**
+     * Writes the index file.
+     * @param fileName The name of the file to write
+     * @param index The spatial index to include, or null
+     * @param approximateIndex The approximate search graph to include, or null
+     */
+    static void save(String fileName, float[] values, int[] classifiers, int numFeatures, float[] ranges,
+                     SpatialIndex index, HnswGraph approximateIndex) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileName), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(classifiers.length);
+            out.writeInt(numFeatures);
+            for (float range : ranges) out.writeFloat(range);
+            for (int classifier : classifiers) out.writeInt(classifier);
+            for (float value : values) out.writeFloat(value);
+            if (approximateIndex != null) {
+                out.writeByte(GRAPH);
+                approximateIndex.writeTo(out);
+            } else if (index != null) {
+                out.writeByte(index instanceof KdTree ? KD_TREE : BALL_TREE);
+                index.writeTo(out);
+            } else {
+                out.writeByte(NONE);
+            }
+        }
+    }
+
+    /**
+     * Memory-maps and loads an index file.
+     * @param fileName The name of the file to load
+     * @return The contents of the file
+     */
+    static Contents load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a KNN index file, or from a different version: " + fileName);
+            }
+            int numWines = buffer.getInt();
+            int numFeatures = buffer.getInt();
+            float[] ranges = readFloats(buffer, numFeatures);
+            int[] classifiers = readInts(buffer, numWines);
+            float[] values = readFloats(buffer, numWines * numFeatures);
+            double[] inverseRangesSquared = KNN.inverseRangesSquared(ranges);
+            byte structure = buffer.get();
+            SpatialIndex index = null;
+            HnswGraph approximateIndex = null;
+            if (structure == GRAPH) {
+                approximateIndex = HnswGraph.readFrom(buffer, values, numFeatures, inverseRangesSquared);
+            } else if (structure == KD_TREE || structure == BALL_TREE) {
+                index = SpatialIndex.readFrom(buffer, structure == KD_TREE, values, numFeatures, inverseRangesSquared);
+            }
+            return new Contents(values, classifiers, numFeatures, ranges, index, approximateIndex);
+        }
+    }
+
+    /* Bulk copies out of the mapped file, moving the buffer along past what was read */
+
+    static int[] readInts(ByteBuffer buffer, int count) {
+        int[] array = new int[count];
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return array;
+    }
+
+    static float[] readFloats(ByteBuffer buffer, int count) {
+        float[] array = new float[count];
+        buffer.asFloatBuffer().get(array);
+        buffer.position(buffer.position() + count * Float.BYTES);
+        return array;
+    }
+
+    static double[] readDoubles(ByteBuffer buffer, int count) {
+        double[] array = new double[count];
+        buffer.asDoubleBuffer().get(array);
+        buffer.position(buffer.position() + count * Double.BYTES);
+        return array;
+    }
+
+    static void writeInts(DataOutputStream out, int[] array, int count) throws IOException {
+        for (int i = 0; i < count; i++) out.writeInt(array[i]);
+    }
+}
@@ -4,59 +4,304 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import nz.ac.vuw.kanemich2.report.Report;
 
 public class KNN {
-    private record Wine(ArrayList<Float> values, int classifier){}
-    private final List<Wine> trainingWines;
-    private final List<Wine> testWines;
+    /**
+     * A set of wines stored as one flat row-major array of feature values, so wine i's features are
+     * values[i*numFeatures] to values[i*numFeatures + numFeatures - 1], and its class is classifiers[i].
+     */
+    private record WineSet(float[] values, int[] classifiers, int numFeatures) {
+        int size() {
+            return classifiers.length;
+        }
+    }
+    private WineSet trainingWines;
+    private final WineSet testWines;
     private int kValue = 1;
-    private final List<Float> trainingRanges;
+    private int threads = 1;        // number of threads used to classify the test wines
+    private final float[] trainingRanges;
+    private final double[] inverseRangesSquared;   // 1/R^2 for each feature, worked out once from the ranges
+    private int[] classLabels;          // the distinct training classes in ascending order, indexed by class id
+    private int[] trainingClassIds;     // the class id of each training wine, including the added ones
+    private SpatialIndex index;     // null unless an index was asked for, in which case classify uses it
+    private HnswGraph approximateIndex;   // null unless --approx was given, in which case classify uses it
+    private QuantisedWines quantisedWines;  // null unless --quantise was given, in which case classify uses it
+    private int rerankCount = 0;    // how many candidates the quantised search re-ranks, 0 for the default
+    private boolean measureRecall = false;  // whether to compare the approximate search with the exact one
+    private int sweepMinK = 0;      // the range of k values to report accuracy for, 0 unless --sweep was given
+    private int sweepMaxK = 0;
+    private boolean leaveOneOut = false;    // evaluate on the training set with leave-one-out instead of the test set
+    private DistanceKernel kernel;  // the blocked distance kernel for checking every training wine, null if --scalar
+    private String indexFileToBuild;    // set by --build-index, where to save the index file instead of predicting
+    private boolean serving = false;    // set by --serve, stay running and classify wines sent to it
+    private int servicePort = 0;        // the local port to serve on, 0 to serve on stdin/stdout
+    private ForkJoinPool pool;          // created the first time it's needed, for more than one thread
+
+    /* Runtime changes to the training set, see addTrainingWine and removeTrainingWine */
+    private static final int MIN_ADDED_BEFORE_REBUILD = 1024;
+    private float[] addedValues = new float[0];     // wines added since the search structures were built, row-major
+    private int[] addedClassifiers = new int[0];
+    private int numAdded = 0;
+    private final BitSet removedWines = new BitSet();   // training wine indices that have been removed
+    private float[] trainingMinimums;   // the current min and max of each feature, only worked out once needed
+    private float[] trainingMaximums;
+    private boolean structuresOutOfDate = false;    // the ranges changed under something that depends on them
 
     /**
      * Constructor takes the data from the training and test files specified in the arguments and
-     * organises them into two lists
+     * organises them into two sets. Options starting with "--" can be given anywhere in the arguments.
      * @param args Arguments given when the app was executed.
      */
     public KNN(String[] args) {
-        if (args.length == 0 || args.length == 1 || args.length > 3) {
-            System.out.println("USAGE ass1-knn.jar <training-filename> <test-filename> <optional k-value>");
-            System.exit(0);
-        } else if (args.length == 3) { // checking if the optional k value is the third argument
+        String indexType = null;
+        boolean scalar = false;
+        boolean approximate = false;
+        boolean buildIndexFile = false;
+        int quantiseBits = 0;
+        int degree = 0;         // 0 unless given, so a loaded graph can tell whether they were asked for
+        int beamWidth = 0;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--index")) {
+                indexType = "auto";
+            } else if (arg.equals("--index=kd") || arg.equals("--index=ball")) {
+                indexType = arg.substring("--index=".length());
+            } else if (arg.equals("--approx")) {
+                approximate = true;
+            } else if (arg.startsWith("--degree=")) {
+                degree = parsePositiveOption(arg, "--degree=");
+            } else if (arg.startsWith("--beam=")) {
+                beamWidth = parsePositiveOption(arg, "--beam=");
+            } else if (arg.equals("--quantise=8") || arg.equals("--quantise=16")) {
+                quantiseBits = Integer.parseInt(arg.substring("--quantise=".length()));
+            } else if (arg.startsWith("--rerank=")) {
+                rerankCount = parsePositiveOption(arg, "--rerank=");
+            } else if (arg.equals("--recall")) {
+                measureRecall = true;
+            } else if (arg.startsWith("--sweep=")) {
+                parseSweepRange(arg.substring("--sweep=".length()));
+            } else if (arg.equals("--loo")) {
+                leaveOneOut = true;
+            } else if (arg.equals("--serve")) {
+                serving = true;
+            } else if (arg.startsWith("--port=")) {
+                serving = true;
+                servicePort = parsePositiveOption(arg, "--port=");
+            } else if (arg.equals("--build-index")) {
+                buildIndexFile = true;
+            } else if (arg.equals("--scalar")) {
+                scalar = true;
+            } else if (arg.equals("--threads")) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--threads=")) {
+                threads = parsePositiveOption(arg, "--threads=");
+            } else if (arg.startsWith("--")) {
+                Report.error("Unknown option: " + arg);
+                printUsage();
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        int numFiles = serving ? 1 : 2;     // the service only needs a training file
+        if (args.length < numFiles || args.length > numFiles + 1) {
+            printUsage();
+        } else if (args.length == numFiles + 1) { // checking if the optional k value is the last argument
             try {
-                int k = Integer.parseInt(args[2]);
+                int k = Integer.parseInt(args[numFiles]);
                 if (k <= 0) {
-                    System.err.println("The k value needs to be a positive non-zero integer.");
-                    System.exit(0);
+                    Report.error("The k value needs to be a positive non-zero integer.");
+                    System.exit(1);
                 } else {
                     kValue = k; // Set k value
                 }
             } catch (NumberFormatException e) {
-                System.err.println("The argument for the k value is invalid.");
-                System.err.println("Please ensure k value is a positive integer, ideally an odd number.");
-                System.exit(0);
+                Report.error("The argument for the k value is invalid.");
+                Report.error("Please ensure k value is a positive integer, ideally an odd number.");
+                System.exit(1);
+            }
+        }
+        // The training file can be an index file made with --build-index, which already has the ranges and
+        // possibly a search structure in it
+        IndexFile.Contents loaded = null;
+        if (IndexFile.isIndexFile(args[0])) {
+            try {
+                loaded = IndexFile.load(args[0]);
+            } catch (IOException e) {
+                Report.summary("Something went wrong reading the index file: " + args[0]);
+                throw new RuntimeException(e);
             }
+            trainingWines = new WineSet(loaded.values(), loaded.classifiers(), loaded.numFeatures());
+        } else {
+            trainingWines = readFile(args[0]);
+        }
+        if (buildIndexFile) {
+            indexFileToBuild = args[1];     // the second argument is where to save it, rather than a test file
+            testWines = new WineSet(new float[0], new int[0], trainingWines.numFeatures);
+        } else if (serving) {
+            testWines = new WineSet(new float[0], new int[0], trainingWines.numFeatures);
+        } else {
+            testWines = readFile(args[1]);
         }
-        trainingWines = readFile(args[0]);
-        testWines = readFile(args[1]);
 
-        System.out.println("Number of wine instances:\n" +
+        Report.info("Number of wine instances:\n" +
                 "Training wines: " + trainingWines.size() + "\n" +
                 "Test wines: " + testWines.size() + "\n");
 
-        System.out.println("Finding value ranges wines in the training set:");
-        trainingRanges = setUpRanges(trainingWines);
-        System.out.println(trainingRanges + "\n");
+        if (loaded != null) {
+            Report.info("Value ranges of wines in the training set, from the index file:");
+            trainingRanges = loaded.ranges();
+        } else {
+            Report.info("Finding value ranges wines in the training set:");
+            trainingRanges = setUpRanges(trainingWines);
+        }
+        Report.info(Arrays.toString(trainingRanges) + "\n");
+        inverseRangesSquared = inverseRangesSquared(trainingRanges);
+
+        // Give each class a small id so votes can be counted in an array
+        classLabels = Arrays.stream(trainingWines.classifiers).distinct().sorted().toArray();
+        trainingClassIds = new int[trainingWines.size()];
+        for (int w = 0; w < trainingWines.size(); w++) {
+            trainingClassIds[w] = Arrays.binarySearch(classLabels, trainingWines.classifiers[w]);
+        }
+
+        if (loaded != null && (loaded.index() != null || loaded.approximateIndex() != null)) {
+            // use the search structure from the file rather than building one, as long as it's the one asked for
+            String stored = loaded.index() != null ? "a " + loaded.index().name() : "an approximate search graph";
+            boolean matches = indexType == null && !approximate ||
+                    "auto".equals(indexType) && loaded.index() != null ||
+                    "kd".equals(indexType) && loaded.index() instanceof KdTree ||
+                    "ball".equals(indexType) && loaded.index() instanceof BallTree ||
+                    approximate && indexType == null && loaded.approximateIndex() != null;
+            if (!matches) {
+                Report.error("The index file holds " + stored + ", not the search structure asked for. " +
+                        "Leave out --index and --approx to use it, or build the index file again with them.");
+                System.exit(1);
+            }
+            index = loaded.index();
+            approximateIndex = loaded.approximateIndex();
+            if (approximateIndex != null && degree > 0 && degree != approximateIndex.degree()) {
+                Report.error("The search graph in the index file has a degree of " + approximateIndex.degree() +
+                        ", not " + degree + ". Leave out --degree to use it, or build the index file again with it.");
+                System.exit(1);
+            }
+            if (approximateIndex != null && beamWidth > 0) {
+                // the beam width is only used for searching, so it can be changed on a loaded graph
+                approximateIndex = approximateIndex.withBeamWidth(beamWidth);
+            }
+            indexType = index != null ? "loaded" : null;
+            approximate = approximateIndex != null;
+            Report.info("Loaded the " + (index != null ? index.name() + " index" : "approximate search graph")
+                    + " from the index file" + (approximateIndex != null ? " (degree = " + approximateIndex.degree()
+                    + ", beam width = " + approximateIndex.beamWidth() + ")" : "") + "\n");
+        }
+        if ((indexType != null ? 1 : 0) + (approximate ? 1 : 0) + (quantiseBits > 0 ? 1 : 0) > 1) {
+            Report.error("Use only one of --index, --approx or --quantise.");
+            System.exit(1);
+        }
+        // Build the exact kernel too when measuring recall, so there's something to compare against
+        if (!scalar && (indexType == null && !approximate && quantiseBits == 0 || measureRecall)) {
+            kernel = new DistanceKernel(trainingWines.values, trainingWines.numFeatures, inverseRangesSquared);
+        }
+        if (approximateIndex != null || index != null) {
+            // already loaded
+        } else if (approximate) {
+            if (degree == 0) degree = HnswGraph.DEFAULT_DEGREE;
+            if (beamWidth == 0) beamWidth = HnswGraph.DEFAULT_BEAM_WIDTH;
+            approximateIndex = new HnswGraph(trainingWines.values, trainingWines.numFeatures, inverseRangesSquared,
+                    degree, beamWidth);
+            Report.info("Built an approximate search graph over the training wines " +
+                    "(degree = " + degree + ", beam width = " + beamWidth + ")\n");
+        } else if (quantiseBits > 0) {
+            quantisedWines = new QuantisedWines(trainingWines.values, trainingWines.numFeatures, trainingRanges,
+                    null, inverseRangesSquared, quantiseBits);
+            Report.info("Quantised the training wines to " + quantiseBits + " bit codes (" +
+                    quantisedWines.sizeInBytes() + " bytes instead of " + trainingWines.values.length * 4L + ")\n");
+        } else if (indexType != null) {
+            index = SpatialIndex.build(indexType, trainingWines.values, trainingWines.numFeatures, inverseRangesSquared);
+            Report.info("Built a " + index.name() + " index over the training wines\n");
+        }
+    }
+
+    /**
+     * Works out 1/R^2 for each feature from the ranges, so the distance can multiply rather than divide.
+     * @param ranges The range of each feature in the training set
+     * @return 1/R^2 for each feature
+     */
+    static double[] inverseRangesSquared(float[] ranges) {
+        double[] inverse = new double[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            inverse[i] = 1.0 / ((double) ranges[i] * ranges[i]);
+        }
+        return inverse;
+    }
+
+    private static void printUsage() {
+        Report.error("USAGE ass1-knn.jar <training-filename> <test-filename> <optional k-value> " +
+                "[--index[=kd|ball]] [--approx [--degree=n] [--beam=n]] [--quantise=8|16 [--rerank=n]] [--recall] " +
+                "[--sweep=[min-]max] [--loo] " +
+                "[--threads[=n]] [--scalar]");
+        Report.error("      ass1-knn.jar --build-index <training-filename> <index-filename> " +
+                "[--index[=kd|ball]] [--approx [--degree=n] [--beam=n]]");
+        Report.error("      ass1-knn.jar --serve|--port=n <training-filename> <optional k-value> " +
+                "[search and --threads options]");
+        System.exit(1);
     }
 
     /**
-     * Method to read the text file and organises it into a usable list.
+     * Reads the range of k values for --sweep, either "min-max" or just "max" to start from 1.
+     * @param range The text after --sweep=
+     */
+    private void parseSweepRange(String range) {
+        try {
+            int dash = range.indexOf('-');
+            sweepMinK = dash < 0 ? 1 : Integer.parseInt(range.substring(0, dash));
+            sweepMaxK = Integer.parseInt(range.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            sweepMinK = 0;
+        }
+        if (sweepMinK <= 0 || sweepMaxK < sweepMinK) {
+            Report.error("The range for --sweep needs to be positive integers, like --sweep=1-15");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the number from an option such as --threads=4, exiting if it isn't a positive integer.
+     * @param arg The whole option
+     * @param prefix The option up to and including the '='
+     * @return The number given
+     */
+    private static int parsePositiveOption(String arg, String prefix) {
+        try {
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value > 0) return value;
+        } catch (NumberFormatException ignored) {
+        }
+        Report.error("The value for " + prefix.substring(0, prefix.length() - 1) +
+                " needs to be a positive integer.");
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * Method to read the text file and organises it into a usable set of wines.
      * Typically, being used in the constructor.
      * @param fileName The name of the data file to be read.
-     * @return List<WineData> Usable list of wine data with the classifications included.
+     * @return WineSet Usable set of wine data with the classifications included.
      */
-    private List<Wine> readFile(String fileName) {
-        List<Wine> fileData = new ArrayList<>();
+    private WineSet readFile(String fileName) {
+        float[] values = new float[1024];
+        int[] classifiers = new int[64];
+        int numFeatures = 0;
+        int numWines = 0;
         try {
             FileReader fr = new FileReader(fileName);
             BufferedReader br = new BufferedReader(fr);
@@ -68,12 +313,20 @@ public class KNN {
                     isFirstLine = false;       // Ignore the first line as it's all the labels
                 } else {
                     String[] tokens = line.split(" ");
-                    ArrayList<Float> wineValues = new ArrayList<>();
-                    for (int i = 0; i < tokens.length - 1; i++) {
-                        wineValues.add(Float.parseFloat(tokens[i]));
+                    if (numWines == 0) numFeatures = tokens.length - 1;
+                    // grow the arrays when full, the same way an ArrayList would
+                    if ((numWines + 1) * numFeatures > values.length) {
+                        values = Arrays.copyOf(values, Math.max(values.length * 2, (numWines + 1) * numFeatures));
+                    }
+                    if (numWines == classifiers.length) {
+                        classifiers = Arrays.copyOf(classifiers, classifiers.length * 2);
+                    }
+                    int offset = numWines * numFeatures;
+                    for (int i = 0; i < numFeatures; i++) {
+                        values[offset + i] = Float.parseFloat(tokens[i]);
                     }
-                    int wineClass = Integer.parseInt(tokens[tokens.length - 1]);
-                    fileData.add(new Wine(wineValues, wineClass));
+                    classifiers[numWines] = Integer.parseInt(tokens[tokens.length - 1]);
+                    numWines++;
                 }
             }
             // close resources
@@ -81,40 +334,49 @@ public class KNN {
             br.close();
 
         } catch (FileNotFoundException e) {
-            System.err.println("File \"" + fileName + "\" not found.");
-            System.err.println("Make sure file is in same directory as the jar file. " +
+            Report.error("File \"" + fileName + "\" not found.");
+            Report.error("Make sure file is in same directory as the jar file. " +
                     "Otherwise you need to include the entire filepath too.");
-            System.exit(0);
+            System.exit(1);
         } catch (IOException e) {
-            System.out.println("Something went wrong reading the file: " + fileName);
+            Report.summary("Something went wrong reading the file: " + fileName);
             throw new RuntimeException(e);
         }
 
-        return fileData;
+        // trim the arrays down to the number of wines actually read
+        return new WineSet(Arrays.copyOf(values, numWines * numFeatures),
+                Arrays.copyOf(classifiers, numWines), numFeatures);
     }
 
     /**
      * Convenience method to find the range of values for each wine feature
-     * for the provided list of Wines.
+     * for the provided set of Wines.
      * Typically, being used in the constructor.
-     * @param wineList The training set used for this algorithm.
-     * @return The list of ranges for each of the wine features.
+     * @param wineSet The training set used for this algorithm.
+     * @return The ranges for each of the wine features.
      */
-    private ArrayList<Float> setUpRanges(List<Wine> wineList) {
-        assert (!wineList.isEmpty());
+    private float[] setUpRanges(WineSet wineSet) {
+        assert (wineSet.size() > 0);
         // get ranges for each wine feature in the training set
-        ArrayList<Float> ranges = new ArrayList<>();
-        int wineValueSize = wineList.get(0).values.size();
-        for (int i = 0; i < wineValueSize; i++) {
-            float min = Float.MAX_VALUE;
-            float max = Float.MIN_VALUE;
-            for(Wine wine : trainingWines) {
-                if (wine.values.get(i) < min)
-                    min = wine.values.get(i);
-                if (wine.values.get(i) > max)
-                    max = wine.values.get(i);
-            }
-            ranges.add(max-min);
+        int numFeatures = wineSet.numFeatures;
+        float[] min = new float[numFeatures];
+        float[] max = new float[numFeatures];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);  // not MIN_VALUE, that's the smallest positive float
+        // one pass over the rows in memory order, rather than one pass per feature
+        float[] values = wineSet.values;
+        for (int offset = 0; offset < values.length; offset += numFeatures) {
+            for (int i = 0; i < numFeatures; i++) {
+                float value = values[offset + i];
+                if (value < min[i])
+                    min[i] = value;
+                if (value > max[i])
+                    max[i] = value;
+            }
+        }
+        float[] ranges = new float[numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            ranges[i] = max[i] - min[i];
         }
         return ranges;
     }
@@ -128,115 +390,574 @@ public class KNN {
      * a and b represent the value of a specific feature for each wine, and R is the range of that feature provided
      * on the training sets. The range is needed to normalise all the wine features and to ensure all the values are
      * relative to each other.
-     * @param firstWine The first wine to find the distance from
-     * @param secondWine The second wine to find the distance to
-     * @return the distance between 2 wines using a normalized metric.
+     * <br>
+     * The 1/R^2 part is worked out once in the constructor (inverseRangesSquared), so it's a multiply here.
+     * The square root is left off since comparing squared distances puts the wines in the same order.
+     * @param first The values of the first wine to find the distance from
+     * @param firstOffset Where the first wine starts in its values array
+     * @param second The values of the second wine to find the distance to
+     * @param secondOffset Where the second wine starts in its values array
+     * @param inverseRangesSquared 1/R^2 for each wine feature
+     * @return the squared distance between 2 wines using a normalized metric.
      */
-    private double findNormalisedEuclideanDistance(Wine firstWine, Wine secondWine) {
+    static double normalisedDistanceSquared(float[] first, int firstOffset, float[] second, int secondOffset,
+                                            double[] inverseRangesSquared) {
         double distanceSquared = 0;
-        for (int i = 0; i < firstWine.values.size(); i++) {
-            double difference = firstWine.values.get(i) - secondWine.values.get(i);
-            double calculation = (difference * difference) /
-                    (trainingRanges.get(i) * trainingRanges.get(i));
-            distanceSquared += calculation;
+        for (int i = 0; i < inverseRangesSquared.length; i++) {
+            double difference = first[firstOffset + i] - second[secondOffset + i];
+            distanceSquared += difference * difference * inverseRangesSquared[i];
         }
-        return Math.sqrt(distanceSquared);
+        return distanceSquared;
     }
 
     /**
-     * Convenience method to find the most common item in a list. Most likely a list of classifiers
-     * @param list The List of classifications
-     * @return The most common classifier
-     * @param <T> Either a string or an int preferred
+     * Holds everything a single classification needs so it can be reused from one test wine to the next,
+     * meaning a query doesn't allocate anything once it's set up. Only the k closest wines are ever kept
+     * (in the NeighbourHeap), and the vote is counted in an array indexed by class id.
+     * <br>
+     * Not safe to share between threads, each thread should have its own.
      */
-    private static <T> T mostCommon(List<T> list) {
-        Map<T, Integer> tally = new HashMap<>();
-        for (T t : list) {
-            Integer val = tally.get(t);
-            tally.put(t, val == null ? 1 : val + 1);
+    private final class Query {
+        private final NeighbourHeap heap;
+        private int[] votes = new int[classLabels.length];
+        private final double[] blockDistances = new double[DistanceKernel.BLOCK_SIZE];
+        private final HnswGraph.Searcher searcher;
+        private final int[] queryCodes;
+        private final NeighbourHeap candidates;
+
+        /**
+         * @param k the k value that effects the performance for the k-Nearest Neighbour algorithm
+         */
+        Query(int k) {
+            heap = new NeighbourHeap(k, removedWines);
+            searcher = approximateIndex == null ? null : approximateIndex.newSearcher(k, removedWines);
+            queryCodes = quantisedWines == null ? null : new int[trainingWines.numFeatures];
+            // by default re-rank 4 times as many candidates as needed, and at least 16
+            int numCandidates = rerankCount > 0 ? rerankCount : Math.max(4 * k, 16);
+            candidates = quantisedWines == null ? null
+                    : new NeighbourHeap(Math.max(numCandidates, k), removedWines);
+        }
+
+        /**
+         * Method to try and classify the test wine using the k-Nearest Neighbour.
+         * Without an index it goes through all the training wines every time to find the closest wine(s).
+         * The number of the closest wines is determined by the k value (eg. 1, 3, 5, etc...), and these wines are
+         * used to determine the classification for the provided wine.
+         * @param testValues the values of the provided wine to classify
+         * @param testOffset where the provided wine starts in testValues
+         * @return the classification of the provided wine as determined by the training set.
+         */
+        int classify(float[] testValues, int testOffset) {
+            findNeighbours(testValues, testOffset, heap);
+            return vote(heap);
         }
-        Map.Entry<T, Integer> max = null;
 
-        for (Map.Entry<T, Integer> e : tally.entrySet()) {
-            if (max == null || e.getValue() > max.getValue())
-                max = e;
+        /**
+         * Fills the heap with the nearest training wines, using whichever search was set up.
+         */
+        private void findNeighbours(float[] testValues, int testOffset, NeighbourHeap heap) {
+            heap.clear();
+            if (searcher != null) {
+                // Approximate, may miss some of the nearest wines
+                searcher.search(testValues, testOffset, heap);
+            } else if (quantisedWines != null) {
+                // Approximate too, but checks the closest candidates exactly
+                quantisedWines.search(testValues, testOffset, queryCodes, candidates, heap);
+            } else if (index != null) {
+                // The index finds the same k nearest wines without having to check all of them
+                index.search(testValues, testOffset, heap);
+            } else {
+                findNeighboursExactly(testValues, testOffset, heap);
+                return;
+            }
+            findAddedNeighbours(testValues, testOffset, heap);
+        }
+
+        /**
+         * Fills the heap with the nearest training wines by checking every one of them.
+         */
+        private void findNeighboursExactly(float[] testValues, int testOffset, NeighbourHeap heap) {
+            heap.clear();
+            if (kernel != null) {
+                // Check every training wine, a block at a time
+                for (int block = 0; block < kernel.numBlocks(); block++) {
+                    kernel.distances(testValues, testOffset, block, blockDistances);
+                    int first = block * DistanceKernel.BLOCK_SIZE;
+                    for (int i = 0; i < kernel.blockLength(block); i++) {
+                        heap.offer(blockDistances[i], first + i);
+                    }
+                }
+            } else {
+                // Check every training wine, one at a time
+                float[] trainingValues = trainingWines.values;
+                int numFeatures = trainingWines.numFeatures;
+                for (int w = 0; w < trainingWines.size(); w++) {
+                    heap.offer(normalisedDistanceSquared(testValues, testOffset, trainingValues, w * numFeatures,
+                            inverseRangesSquared), w);
+                }
+            }
+            findAddedNeighbours(testValues, testOffset, heap);
+        }
+
+        /**
+         * Offers the wines added since the search structures were built to the heap. There aren't many of
+         * them, so they're just checked one at a time.
+         */
+        private void findAddedNeighbours(float[] testValues, int testOffset, NeighbourHeap heap) {
+            int numFeatures = trainingWines.numFeatures;
+            for (int i = 0; i < numAdded; i++) {
+                heap.offer(normalisedDistanceSquared(testValues, testOffset, addedValues, i * numFeatures,
+                        inverseRangesSquared), trainingWines.size() + i);
+            }
+        }
+
+        /**
+         * Out of the nearest neighbours in the heap find the most common classifier. Ties go to the
+         * lowest class.
+         * @return The most common classifier
+         */
+        private int vote(NeighbourHeap heap) {
+            if (votes.length < classLabels.length) {
+                votes = new int[classLabels.length];    // a new class has been added since
+            }
+            Arrays.fill(votes, 0);
+            for (int i = 0; i < heap.size(); i++) {
+                votes[trainingClassIds[heap.indexAt(i)]]++;
+            }
+            int best = 0;
+            for (int c = 1; c < votes.length; c++) {
+                if (votes[c] > votes[best]) best = c;
+            }
+            return classLabels[best];
         }
-        assert max != null;
-        return max.getKey();
     }
+
     /**
-     * Method to try and classify the test wine using the k-Nearest Neighbour.
-     * It's not very efficient as it goes through all the training wines every time to find the closest wine(s).
-     * The number of the closest wines is determined by the k value (eg. 1, 3, 5, etc...), and these wines are
-     * used to determine the classification for the provided wine.
-     * @param testWine the provided wine to classify
-     * @param k the k value that effects the performance for the k-Nearest Neighbour algorithm
-     * @return the classification of the provided wine as determined by the training set.
+     * Classifies every wine in the set. With more than one thread the wines are split into chunks that
+     * are classified in parallel on a fork-join pool, each chunk with its own Query. Every prediction is
+     * stored at the wine's own position, so the results come out in the original order either way.
+     * @param wines The wines to classify
+     * @return The predicted class of each wine, in the same order as the set
      */
-    private int classify(Wine testWine, int k) {
-        // Creating an internal Neighbour class to keep track of distances
-        // Implements Comparable as it will be in a priority queue.
-        record Neighbour(int wineClass, double distance) implements Comparable<Neighbour> {
-            @Override
-            public int compareTo(Neighbour o) {
-                double result = distance - o.distance;
-                if (result < 0) return -1;  // just needs to be negative
-                else if (result == 0) return 0;
-                else return 1;  // just needs to be positive
-            }
+    private int[] predict(WineSet wines) {
+        refreshSearchStructures(false);
+        int[] predictions = new int[wines.size()];
+        runInChunks(wines.size(), (from, to) -> classifyRange(wines, from, to, predictions));
+        return predictions;
+    }
+
+    /**
+     * Splits the positions 0 to size into chunks and runs the task on each of them, in parallel when
+     * there's more than one thread. The task is given the start (inclusive) and end (exclusive) of its chunk.
+     */
+    private void runInChunks(int size, BiConsumer<Integer, Integer> task) {
+        if (threads == 1) {
+            task.accept(0, size);
+            return;
         }
-        // Organise wine training instances in the order of euclidean distances from given test wine
-        PriorityQueue<Neighbour> neighbours = new PriorityQueue<>();
-        for (Wine wine : trainingWines) {
-            double distance = findNormalisedEuclideanDistance(testWine, wine);
-            neighbours.add(new Neighbour(wine.classifier, distance));
+        // a few chunks per thread so a slow chunk doesn't leave the other threads idle
+        int numChunks = Math.min(size, threads * 4);
+        if (pool == null) {
+            pool = new ForkJoinPool(threads);   // kept for next time, the service classifies lots of small batches
         }
-        // Find the k nearest neighbours
-        // e.g. if k = 1 then find the single closest neighbour
-        List<Integer> nearestNeighbours = new ArrayList<>();
-        for (int i = 0; i < k; i++) {
-            Neighbour n = neighbours.poll();    // The neighbour with the shortest distance in the queue
-            assert n != null;   // Shouldn't happen
-            nearestNeighbours.add(n.wineClass);
+        pool.submit(() -> IntStream.range(0, numChunks).parallel().forEach(chunk ->
+                task.accept((int) ((long) size * chunk / numChunks),
+                        (int) ((long) size * (chunk + 1) / numChunks)))).join();
+    }
+
+    /**
+     * @return The number of features each wine has
+     */
+    int numFeatures() {
+        return trainingWines.numFeatures;
+    }
+
+    /**
+     * Classifies a batch of wines, used by the scoring service.
+     * @param values The wines' features, row-major
+     * @param count The number of wines in values
+     * @return The predicted class of each wine
+     */
+    int[] classifyBatch(float[] values, int count) {
+        return predict(new WineSet(values, new int[count], trainingWines.numFeatures));
+    }
+
+    /**
+     * Classifies wines from (inclusive) to to (exclusive) in the set and puts the results in predictions.
+     */
+    private void classifyRange(WineSet wines, int from, int to, int[] predictions) {
+        Query query = new Query(kValue);
+        for (int w = from; w < to; w++) {
+            predictions[w] = query.classify(wines.values, w * wines.numFeatures);
         }
-        // Out of the k nearest neighbours find the most common classifier
-        return mostCommon(nearestNeighbours);
     }
 
     /**
      * Make predictions on classifying the test wines using k-Nearest Neighbour and reporting the results.
      */
     private void makePredictions() {
-        //ArrayList<Integer> predictions;
-        System.out.println(
+        Report.info(
                 "Class predictions of test wines using k-Nearest Neighbour, where k = " + kValue + ":\n");
+        int[] predictions = predict(testWines);
+        // with --quiet there's no need to format a line for every wine
+        boolean showWines = Report.shows(Report.Level.NORMAL);
         int wineNumber = 1;
         int successCount = 0;
-        for (Wine testWine : testWines) {
-            System.out.print("Wine " + wineNumber + ": ");
-
-            System.out.print("Prediction = ");
-            int classPrediction = classify(testWine, kValue);
-            System.out.print(classPrediction + ", ");
-
-            System.out.print("Actual = " + testWine.classifier + "\t");
-            if (classPrediction == testWine.classifier) {
-                System.out.println("Success!");
-                successCount++;
-            } else {
-                System.out.println("Fail...");
+        for (int w = 0; w < testWines.size(); w++) {
+            int classPrediction = predictions[w];
+            int actual = testWines.classifiers[w];
+            boolean success = classPrediction == actual;
+            if (success) successCount++;
+            if (showWines) {
+                Report.info("Wine " + wineNumber + ": Prediction = " + classPrediction + ", Actual = " + actual +
+                        "\t" + (success ? "Success!" : "Fail..."));
+            }
+            if (Report.recording()) {
+                Report.prediction(wineNumber, Integer.toString(classPrediction), Integer.toString(actual));
             }
             wineNumber++;
             //break;
         }
-        System.out.println("\nSuccessfully predicted " + successCount + " out of " + testWines.size() + " wines");
-        System.out.print("\nAccuracy: ");
         float accuracy = (float) successCount/testWines.size();
-        System.out.println(accuracy*100f + "%");
+        Report.summary("\nSuccessfully predicted " + successCount + " out of " + testWines.size() + " wines");
+        Report.summary("\nAccuracy: " + accuracy*100f + "%");
+        Report.metric("k", kValue);
+        Report.metric("correct", successCount);
+        Report.metric("total", testWines.size());
+        Report.metric("accuracy", accuracy);
+        if (measureRecall && (approximateIndex != null || quantisedWines != null)) {
+            reportRecall();
+        }
+    }
+
+    /**
+     * Compares the approximate (or quantised) search with checking every training wine, for each test wine. Recall is the
+     * fraction of the true k nearest neighbours that the approximate search found. The time taken by each
+     * search is reported too, so the speed up can be weighed against what's lost.
+     */
+    private void reportRecall() {
+        refreshSearchStructures(false);
+        Query query = new Query(kValue);
+        NeighbourHeap exact = new NeighbourHeap(query.heap.capacity());
+        int found = 0;
+        int total = 0;
+        int samePredictions = 0;
+        long approximateTime = 0;
+        long exactTime = 0;
+        for (int w = 0; w < testWines.size(); w++) {
+            int offset = w * testWines.numFeatures;
+            long start = System.nanoTime();
+            query.findNeighbours(testWines.values, offset, query.heap);
+            long middle = System.nanoTime();
+            query.findNeighboursExactly(testWines.values, offset, exact);
+            exactTime += System.nanoTime() - middle;
+            approximateTime += middle - start;
+
+            for (int i = 0; i < exact.size(); i++) {
+                for (int j = 0; j < query.heap.size(); j++) {
+                    if (exact.indexAt(i) == query.heap.indexAt(j)) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+            total += exact.size();
+            if (query.vote(query.heap) == query.vote(exact)) samePredictions++;
+        }
+        Report.summary("\nRecall against exact search: " + (float) found / total * 100f + "%");
+        Report.summary("Same prediction as exact search: " + samePredictions + " out of " + testWines.size());
+        Report.printf(Report.Level.QUIET, "Average query time: approximate %.1f us, exact %.1f us%n",
+                approximateTime / 1000.0 / testWines.size(), exactTime / 1000.0 / testWines.size());
+        Report.metric("recall", (float) found / total);
+        Report.metric("same predictions as exact", samePredictions);
+    }
+
+    /**
+     * Reports the accuracy for every k value in the --sweep range (or just the k value if there's no range).
+     * Each wine's neighbours are only found once, up to the largest k, and then the vote for every smaller k
+     * is just the vote over the first k of them. Adding one neighbour at a time to the tally means all the
+     * k values together cost about the same as one.
+     * <br>
+     * With --loo it's the training set that gets evaluated, each training wine being classified by all the
+     * others (the feature ranges still come from the whole training set). Otherwise it's the test set.
+     */
+    private void reportSweep() {
+        int minK = sweepMinK > 0 ? sweepMinK : kValue;
+        int maxK = sweepMinK > 0 ? sweepMaxK : kValue;
+        // fold in any added wines first, so the training set is all in one place for leave-one-out
+        refreshSearchStructures(numAdded > 0);
+        WineSet wines = leaveOneOut ? trainingWines : testWines;
+        Report.info("Accuracy for each k value on the " + (leaveOneOut ?
+                "training wines, using leave-one-out cross-validation:\n" : "test wines:\n"));
+
+        int[] successCounts = new int[maxK + 1];
+        int[] fewestFound = {maxK};     // the fewest neighbours found for any wine, shared between the chunks
+        runInChunks(wines.size(), (from, to) -> {
+            // one neighbour more than needed with leave-one-out, since the wine will find itself
+            Query query = new Query(leaveOneOut ? maxK + 1 : maxK);
+            int[] votes = new int[classLabels.length];
+            int[] chunkSuccesses = new int[maxK + 1];
+            int chunkFewest = maxK;
+            for (int w = from; w < to; w++) {
+                query.findNeighbours(wines.values, w * wines.numFeatures, query.heap);
+                int[] nearest = query.heap.sortedIndices();
+                Arrays.fill(votes, 0);
+                int best = 0;
+                int k = 0;
+                for (int neighbour : nearest) {
+                    if (k == maxK) break;
+                    if (leaveOneOut && neighbour == w) continue;
+                    int classId = trainingClassIds[neighbour];
+                    votes[classId]++;
+                    // ties go to the lowest class, the same as Query.vote
+                    if (votes[classId] > votes[best] || (votes[classId] == votes[best] && classId < best)) {
+                        best = classId;
+                    }
+                    k++;
+                    if (k >= minK && classLabels[best] == wines.classifiers[w]) chunkSuccesses[k]++;
+                }
+                chunkFewest = Math.min(chunkFewest, k);
+            }
+            synchronized (successCounts) {
+                for (int k = minK; k <= maxK; k++) successCounts[k] += chunkSuccesses[k];
+                fewestFound[0] = Math.min(fewestFound[0], chunkFewest);
+            }
+        });
+        if (fewestFound[0] < maxK) {
+            // the larger k values would be counted as wrong for every wine, which isn't a real result
+            Report.error("Only " + fewestFound[0] + " neighbours were found for some wines, fewer than " +
+                    "k = " + maxK + ". Use a smaller k, or a wider --beam or more --rerank candidates.");
+            System.exit(1);
+        }
+
+        for (int k = minK; k <= maxK; k++) {
+            float accuracy = (float) successCounts[k] / wines.size();
+            Report.summary("k = " + k + ": " + successCounts[k] + " out of " + wines.size() +
+                    " wines, accuracy " + accuracy * 100f + "%");
+            Report.metric("accuracy k=" + k, accuracy);
+        }
+    }
+
+    /**
+     * Saves the training wines, their ranges and the search structure (if any) to the index file given with
+     * --build-index. Giving the index file in place of the training file on later runs loads all of it
+     * straight back in.
+     */
+    private void saveIndexFile() {
+        try {
+            IndexFile.save(indexFileToBuild, trainingWines.values, trainingWines.classifiers,
+                    trainingWines.numFeatures, trainingRanges, index, approximateIndex);
+        } catch (IOException e) {
+            Report.summary("Something went wrong writing the index file: " + indexFileToBuild);
+            throw new RuntimeException(e);
+        }
+        Report.summary("Saved the index file: " + indexFileToBuild);
     }
+
+    /**
+     * Adds a wine to the training set while running. The wine is kept to one side and checked one at a time
+     * by every search until enough have been added to be worth rebuilding the search structures with them.
+     * The feature ranges are updated straight away, but anything that depends on them (the ball tree and the
+     * quantised codes) is only rebuilt the next time wines are classified, and only if a range actually changed.
+     * <br>
+     * Not safe to call while classifying on other threads.
+     * @param features The wine's feature values, one per feature
+     * @param classifier The wine's class
+     * @return The new wine's index, which can be given to removeTrainingWine
+     */
+    public int addTrainingWine(float[] features, int classifier) {
+        int numFeatures = trainingWines.numFeatures;
+        if (features.length != numFeatures) {
+            throw new IllegalArgumentException("Expected " + numFeatures + " features but got " + features.length);
+        }
+        findExtremes();
+        if ((numAdded + 1) * numFeatures > addedValues.length) {
+            addedValues = Arrays.copyOf(addedValues, Math.max(2 * addedValues.length, 64 * numFeatures));
+            addedClassifiers = Arrays.copyOf(addedClassifiers, addedValues.length / numFeatures);
+        }
+        System.arraycopy(features, 0, addedValues, numAdded * numFeatures, numFeatures);
+        addedClassifiers[numAdded] = classifier;
+        int wine = trainingWines.size() + numAdded;
+        numAdded++;
+
+        if (Arrays.binarySearch(classLabels, classifier) < 0) {
+            // a class that hasn't been seen before, which shifts the class ids along
+            int[] labels = Arrays.copyOf(classLabels, classLabels.length + 1);
+            labels[classLabels.length] = classifier;
+            Arrays.sort(labels);
+            classLabels = labels;
+            for (int w = 0; w < wine; w++) {
+                trainingClassIds[w] = Arrays.binarySearch(classLabels, classifierOf(w));
+            }
+        }
+        if (wine >= trainingClassIds.length) {
+            trainingClassIds = Arrays.copyOf(trainingClassIds, Math.max(2 * trainingClassIds.length, 64));
+        }
+        trainingClassIds[wine] = Arrays.binarySearch(classLabels, classifier);
+
+        boolean rangesChanged = false;
+        for (int f = 0; f < numFeatures; f++) {
+            if (features[f] < trainingMinimums[f]) {
+                trainingMinimums[f] = features[f];
+                rangesChanged = true;
+            }
+            if (features[f] > trainingMaximums[f]) {
+                trainingMaximums[f] = features[f];
+                rangesChanged = true;
+            }
+        }
+        if (rangesChanged) updateRanges();
+        return wine;
+    }
+
+    /**
+     * Removes a wine from the training set while running. The wine is only marked as removed, so the
+     * indices of the other wines don't change, and the searches skip over it. If it held the min or max
+     * of any feature that feature's range is worked out again from the remaining wines.
+     * <br>
+     * Not safe to call while classifying on other threads.
+     * @param wine The wine's index, its position in the training file or as returned by addTrainingWine
+     * @return false if there's no such wine or it was already removed
+     */
+    public boolean removeTrainingWine(int wine) {
+        if (wine < 0 || wine >= trainingWines.size() + numAdded || removedWines.get(wine)) return false;
+        findExtremes();
+        removedWines.set(wine);
+        float[] values = wine < trainingWines.size() ? trainingWines.values : addedValues;
+        int offset = (wine < trainingWines.size() ? wine : wine - trainingWines.size()) * trainingWines.numFeatures;
+        boolean rangesChanged = false;
+        for (int f = 0; f < trainingWines.numFeatures; f++) {
+            float value = values[offset + f];
+            if (value == trainingMinimums[f] || value == trainingMaximums[f]) {
+                rangesChanged |= findExtremes(f);
+            }
+        }
+        if (rangesChanged) updateRanges();
+        return true;
+    }
+
+    /**
+     * @return The class of a training wine, whether it was in the training file or added since
+     */
+    private int classifierOf(int wine) {
+        return wine < trainingWines.size() ? trainingWines.classifiers[wine]
+                : addedClassifiers[wine - trainingWines.size()];
+    }
+
+    /**
+     * Works out the min and max of every feature the first time they're needed. setUpRanges only keeps the
+     * ranges, and they're not in index files.
+     */
+    private void findExtremes() {
+        if (trainingMinimums != null) return;
+        trainingMinimums = new float[trainingWines.numFeatures];
+        trainingMaximums = new float[trainingWines.numFeatures];
+        for (int f = 0; f < trainingWines.numFeatures; f++) {
+            findExtremes(f);
+        }
+    }
+
+    /**
+     * Works out the min and max of one feature over the remaining training wines.
+     * @return true if either of them changed
+     */
+    private boolean findExtremes(int feature) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        int numFeatures = trainingWines.numFeatures;
+        for (int w = 0; w < trainingWines.size() + numAdded; w++) {
+            if (removedWines.get(w)) continue;
+            float value = w < trainingWines.size() ? trainingWines.values[w * numFeatures + feature]
+                    : addedValues[(w - trainingWines.size()) * numFeatures + feature];
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        boolean changed = min != trainingMinimums[feature] || max != trainingMaximums[feature];
+        trainingMinimums[feature] = min;
+        trainingMaximums[feature] = max;
+        return changed;
+    }
+
+    /**
+     * Updates the ranges from the min and max of each feature. The ranges and 1/R^2 arrays are changed in place,
+     * so the distance, the blocked kernel, the KD-tree and the graph all pick up the new ranges as they are.
+     * The ball tree and the quantised codes were built around the old ranges, so they're marked to be rebuilt.
+     */
+    private void updateRanges() {
+        for (int f = 0; f < trainingRanges.length; f++) {
+            trainingRanges[f] = trainingMaximums[f] - trainingMinimums[f];
+            inverseRangesSquared[f] = 1.0 / ((double) trainingRanges[f] * trainingRanges[f]);
+        }
+        if (index instanceof BallTree || quantisedWines != null) {
+            structuresOutOfDate = true;
+        }
+    }
+
+    /**
+     * Brings the search structures up to date before classifying, if the ranges they depend on have changed or
+     * enough wines have been added to be worth it. The added wines are moved into the training set and the
+     * structures are rebuilt the same way as before. Removed wines stay where they are, so indices don't change.
+     * @param force Rebuild if there are any added wines at all
+     */
+    private void refreshSearchStructures(boolean force) {
+        boolean tooManyAdded = numAdded > Math.max(MIN_ADDED_BEFORE_REBUILD, trainingWines.size() / 16);
+        if (!structuresOutOfDate && !tooManyAdded && !(force && numAdded > 0)) return;
+
+        int numFeatures = trainingWines.numFeatures;
+        int size = trainingWines.size();
+        float[] values = Arrays.copyOf(trainingWines.values, (size + numAdded) * numFeatures);
+        System.arraycopy(addedValues, 0, values, size * numFeatures, numAdded * numFeatures);
+        int[] classifiers = Arrays.copyOf(trainingWines.classifiers, size + numAdded);
+        System.arraycopy(addedClassifiers, 0, classifiers, size, numAdded);
+        trainingWines = new WineSet(values, classifiers, numFeatures);
+        numAdded = 0;
+        structuresOutOfDate = false;
+
+        if (kernel != null) {
+            kernel = new DistanceKernel(values, numFeatures, inverseRangesSquared);
+        }
+        if (index != null) {
+            index = SpatialIndex.build(index instanceof KdTree ? "kd" : "ball", values, numFeatures,
+                    inverseRangesSquared);
+        }
+        if (approximateIndex != null) {
+            approximateIndex = new HnswGraph(values, numFeatures, inverseRangesSquared,
+                    approximateIndex.degree(), approximateIndex.beamWidth());
+        }
+        if (quantisedWines != null) {
+            findExtremes();
+            quantisedWines = new QuantisedWines(values, numFeatures, trainingRanges, trainingMinimums,
+                    inverseRangesSquared, quantisedWines.bits());
+        }
+    }
+
     public static void main(String[] args) {
+        args = Report.setUp("knn", args);
+        // Serving on stdin/stdout needs stdout for the replies, so everything else goes to stderr
+        PrintStream replies = System.out;
+        if (Arrays.asList(args).contains("--serve")) {
+            Report.redirectTo(System.err);
+        }
         KNN knn = new KNN(args);
-        knn.makePredictions();
+        if (knn.serving) {
+            ScoringService service = new ScoringService(knn);
+            try {
+                if (knn.servicePort > 0) {
+                    service.serveOnPort(knn.servicePort);
+                } else {
+                    service.serve(System.in, replies);
+                    Report.error(service.latencyReport());
+                }
+            } catch (IOException e) {
+                Report.error("The scoring service stopped: " + e.getMessage());
+            }
+        } else if (knn.indexFileToBuild != null) {
+            knn.saveIndexFile();
+        } else if (knn.sweepMinK > 0 || knn.leaveOneOut) {
+            knn.reportSweep();
+        } else {
+            knn.makePredictions();
+        }
     }
 }
 
@@ -0,0 +1,53 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * KD-tree index. Each branch splits its wines on a single feature, so the closest a wine on the
+ * other side of the split could be is just the distance along that feature to the split value.
+ */
+class KdTree extends SpatialIndex {
+
+    KdTree(float[] values, int numFeatures, double[] inverseRangesSquared) {
+        super(values, numFeatures, inverseRangesSquared);
+    }
+
+    @Override
+    String name() {
+        return "KD-tree";
+    }
+
+    @Override
+    protected void nodeBuilt(int node, int from, int to) {
+        // the split is all a KD-tree needs
+    }
+
+    @Override
+    protected void writeBounds(DataOutputStream out) {
+        // nothing besides the splits
+    }
+
+    @Override
+    protected void readBounds(ByteBuffer buffer) {
+        // nothing besides the splits
+    }
+
+    @Override
+    protected void searchNode(int node, float[] query, int queryOffset, NeighbourHeap heap) {
+        if (left[node] < 0) {
+            searchLeaf(node, query, queryOffset, heap);
+            return;
+        }
+        int feature = splitFeature[node];
+        // worked out the same way as in the distance, so the bound is never more than a real distance
+        double difference = query[queryOffset + feature] - splitValue[node];
+        int near = difference < 0 ? left[node] : right[node];
+        int far = difference < 0 ? right[node] : left[node];
+        searchNode(near, query, queryOffset, heap);
+        // only check the other side if it could hold something at least as close as the current k-th nearest
+        if (difference * difference * inverseRangesSquared[feature] <= heap.worstDistance()) {
+            searchNode(far, query, queryOffset, heap);
+        }
+    }
+}
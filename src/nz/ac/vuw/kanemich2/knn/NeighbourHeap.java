@@ -0,0 +1,148 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.util.BitSet;
+
+/**
+ * A bounded max-heap that keeps the k closest training wines seen so far. The furthest of the k is
+ * always at the top, so a new wine only gets in if it's closer than that one, and the search indexes
+ * can use worstDistance() to know which parts of the training set are too far away to bother with.
+ * <br>
+ * Distances are squared normalised distances, and ties are broken on the training wine's index
+ * (lower index wins) so every search method ends up with exactly the same neighbours.
+ */
+class NeighbourHeap {
+    private final int k;
+    private final double[] distances;
+    private final int[] indices;
+    private int size = 0;
+    private final BitSet excluded;
+
+    /**
+     * @param k The number of neighbours to keep
+     */
+    NeighbourHeap(int k) {
+        this(k, null);
+    }
+
+    /**
+     * @param k The number of neighbours to keep
+     * @param excluded Training wine indices that are never let in (the removed wines), or null
+     */
+    NeighbourHeap(int k, BitSet excluded) {
+        this.k = k;
+        this.excluded = excluded;
+        distances = new double[k];
+        indices = new int[k];
+    }
+
+    /**
+     * Offer a training wine to the heap. It's only kept if it's one of the k closest so far.
+     * @param distance The squared distance of the training wine from the wine being classified
+     * @param index The index of the training wine
+     */
+    void offer(double distance, int index) {
+        if (excluded != null && excluded.get(index)) return;
+        if (size < k) {
+            // sift up from the bottom
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!further(distance, index, distances[parent], indices[parent])) break;
+                distances[i] = distances[parent];
+                indices[i] = indices[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+        } else if (further(distances[0], indices[0], distance, index)) {
+            // replace the furthest neighbour and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && further(distances[child + 1], indices[child + 1],
+                        distances[child], indices[child])) {
+                    child++;
+                }
+                if (!further(distances[child], indices[child], distance, index)) break;
+                distances[i] = distances[child];
+                indices[i] = indices[child];
+                i = child;
+            }
+            distances[i] = distance;
+            indices[i] = index;
+        }
+    }
+
+    /**
+     * @return The squared distance a training wine has to beat to get into the heap. Infinity while
+     * the heap still has room.
+     */
+    double worstDistance() {
+        return size < k ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Empty the heap so it can be used for another search.
+     */
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The number of neighbours the heap keeps (the k value)
+     */
+    int capacity() {
+        return k;
+    }
+
+    /**
+     * @return The number of neighbours currently held
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i A position in the heap, from 0 to size() - 1
+     * @return The training wine index held at that position. The positions are in heap order, not distance order
+     */
+    int indexAt(int i) {
+        return indices[i];
+    }
+
+    /**
+     * @param i A position in the heap, from 0 to size() - 1
+     * @return The squared distance held at that position
+     */
+    double distanceAt(int i) {
+        return distances[i];
+    }
+
+    /**
+     * @return The indices of the neighbours held, closest first
+     */
+    int[] sortedIndices() {
+        // k is small so an insertion sort on a copy is plenty
+        double[] sortedDistances = new double[size];
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; i++) {
+            int j = i;
+            while (j > 0 && further(sortedDistances[j - 1], sorted[j - 1], distances[i], indices[i])) {
+                sortedDistances[j] = sortedDistances[j - 1];
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sortedDistances[j] = distances[i];
+            sorted[j] = indices[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * The ordering used by the heap: further away first, then higher index first.
+     */
+    private static boolean further(double distance, int index, double otherDistance, int otherIndex) {
+        return distance > otherDistance || (distance == otherDistance && index > otherIndex);
+    }
+}
@@ -0,0 +1,142 @@
+package nz.ac.vuw.kanemich2.knn;
+
+/**
+ * A compact copy of the training wines where each feature is stored as an 8 or 16 bit code instead of a
+ * float. Since the distance already divides each feature by its range, the code is just where the value
+ * sits within the training range: 0 at the minimum and LEVELS at the maximum. The difference between two
+ * codes divided by LEVELS is then (roughly) the normalised difference, so the distance can be compared
+ * with integer maths and no weights.
+ * <br>
+ * The codes lose some precision, so a search first finds more candidates than it needs using the codes,
+ * then works out their exact distances from the float values and keeps the k closest of those. The scan
+ * over every training wine only reads the codes, which are a half (16 bit) or a quarter (8 bit) the size
+ * of the floats, so a lot more of the training set fits in the cache.
+ */
+class QuantisedWines {
+    private static final int MAX_QUERY_CODE = 1 << 24; // test wines can be outside the training range, but not that far
+
+    private final float[] values;
+    private final int numFeatures;
+    private final int numWines;
+    private final double[] inverseRangesSquared;
+    private final int bits;
+    private final int levels;
+    private final float[] minimums;
+    private final double[] scales;      // LEVELS/R for each feature
+    private final byte[] codes8;        // one of these is null depending on the number of bits
+    private final short[] codes16;
+
+    /**
+     * Works out the codes for the training wines.
+     * @param values The training wines' features, row-major. Kept for re-ranking the candidates exactly
+     * @param numFeatures The number of features per wine
+     * @param ranges The range of each feature in the training set
+     * @param inverseRangesSquared 1/R^2 for each feature
+     * @param minimums The min of each feature, or null to work them out from the values
+     * @param bits 8 or 16
+     */
+    QuantisedWines(float[] values, int numFeatures, float[] ranges, float[] minimums,
+                   double[] inverseRangesSquared, int bits) {
+        this.values = values;
+        this.numFeatures = numFeatures;
+        this.inverseRangesSquared = inverseRangesSquared;
+        numWines = values.length / numFeatures;
+        this.bits = bits;
+        levels = bits == 8 ? 0xFF : 0xFFFF;
+
+        if (minimums != null) {
+            this.minimums = minimums.clone();
+        } else {
+            this.minimums = new float[numFeatures];
+            java.util.Arrays.fill(this.minimums, Float.MAX_VALUE);
+            for (int offset = 0; offset < values.length; offset += numFeatures) {
+                for (int f = 0; f < numFeatures; f++) {
+                    this.minimums[f] = Math.min(this.minimums[f], values[offset + f]);
+                }
+            }
+        }
+        scales = new double[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            scales[f] = ranges[f] > 0 ? levels / (double) ranges[f] : 0;
+        }
+
+        codes8 = bits == 8 ? new byte[values.length] : null;
+        codes16 = bits == 8 ? null : new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            // wines that have been removed can be outside the range now, but they're never searched anyway
+            int code = (int) Math.round((values[i] - this.minimums[i % numFeatures]) * scales[i % numFeatures]);
+            if (codes8 != null) codes8[i] = (byte) code;
+            else codes16[i] = (short) code;
+        }
+    }
+
+    /**
+     * Works out the codes for a query wine. These aren't clamped to the training range, which is why they're
+     * ints, so a test wine outside it still ranks by how far outside it is. They are clamped to
+     * +-MAX_QUERY_CODE though, so a wild value can't overflow the int, or the long sum of squared
+     * differences in search(). That's over 256 times the training range out even with 16 bit codes, so it only
+     * touches values that are wildly out anyway, and the exact re-ranking uses the real values regardless.
+     * @param query The array holding the query wine's features
+     * @param queryOffset Where the query wine starts in the array
+     * @param codes Where to put the codes, at least numFeatures long
+     */
+    void encode(float[] query, int queryOffset, int[] codes) {
+        for (int f = 0; f < numFeatures; f++) {
+            long code = Math.round((query[queryOffset + f] - minimums[f]) * scales[f]);
+            codes[f] = (int) Math.max(-MAX_QUERY_CODE, Math.min(MAX_QUERY_CODE, code));
+        }
+    }
+
+    /**
+     * Finds the nearest training wines to the query: the closest by code go into candidates, and then the
+     * closest of those by exact distance go into heap.
+     * @param query The array holding the query wine's features
+     * @param queryOffset Where the query wine starts in the array
+     * @param queryCodes A buffer for the query's codes, at least numFeatures long
+     * @param candidates The heap for the candidates, sized to how many should be re-ranked
+     * @param heap The heap to fill, sized to the k value
+     */
+    void search(float[] query, int queryOffset, int[] queryCodes, NeighbourHeap candidates, NeighbourHeap heap) {
+        encode(query, queryOffset, queryCodes);
+        candidates.clear();
+        if (codes8 != null) {
+            for (int w = 0, offset = 0; w < numWines; w++, offset += numFeatures) {
+                long distance = 0;
+                for (int f = 0; f < numFeatures; f++) {
+                    long difference = queryCodes[f] - (codes8[offset + f] & 0xFF);
+                    distance += difference * difference;
+                }
+                candidates.offer(distance, w);
+            }
+        } else {
+            for (int w = 0, offset = 0; w < numWines; w++, offset += numFeatures) {
+                long distance = 0;
+                for (int f = 0; f < numFeatures; f++) {
+                    long difference = queryCodes[f] - (codes16[offset + f] & 0xFFFF);
+                    distance += difference * difference;
+                }
+                candidates.offer(distance, w);
+            }
+        }
+        // re-rank the candidates with the full precision values
+        for (int i = 0; i < candidates.size(); i++) {
+            int wine = candidates.indexAt(i);
+            heap.offer(KNN.normalisedDistanceSquared(query, queryOffset, values, wine * numFeatures,
+                    inverseRangesSquared), wine);
+        }
+    }
+
+    /**
+     * @return 8 or 16
+     */
+    int bits() {
+        return bits;
+    }
+
+    /**
+     * @return The number of bytes the codes take up
+     */
+    long sizeInBytes() {
+        return codes8 != null ? codes8.length : codes16.length * 2L;
+    }
+}
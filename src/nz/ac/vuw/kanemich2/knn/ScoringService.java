@@ -0,0 +1,266 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import nz.ac.vuw.kanemich2.report.Report;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keeps KNN loaded and classifies wines sent to it, rather than loading everything again for every file.
+ * <br>
+ * It uses a line protocol, over stdin/stdout or over connections to a local port. Each line is one request
+ * and gets one line back, in the same order:
+ * <pre>
+ *   v1 v2 ... vn            classify a wine with these feature values, replies with its class
+ *   add v1 v2 ... vn class  add a wine to the training set, replies with its index
+ *   remove index            remove a wine from the training set, replies "removed" or "not found"
+ *   stats                   replies with the latency report for all requests so far
+ *   quit                    close the connection
+ * </pre>
+ * Requests from every connection go into one queue. A single worker takes everything waiting in the queue
+ * at once (up to MAX_BATCH) and classifies it as one batch, so under load the requests are grouped up and
+ * spread over the threads, without holding up a lone request waiting for others. Since adds and removes are
+ * done by the same worker, in order with the classifications, they never happen during a classification.
+ */
+class ScoringService {
+    private static final int MAX_BATCH = 1024;
+
+    private final KNN knn;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * A single line from a client, and its reply once it's been worked out.
+     */
+    private static final class Request {
+        final String line;
+        final long received = System.nanoTime();
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        Request(String line) {
+            this.line = line.trim();
+        }
+    }
+
+    ScoringService(KNN knn) {
+        this.knn = knn;
+        Thread worker = new Thread(this::work, "knn-scoring");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Accepts connections on the local port and serves each of them, until the process is stopped.
+     * @param port The port to listen on, only on the loopback address
+     */
+    void serveOnPort(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            Report.info("Scoring service listening on port " + port);
+            Report.flush();     // it won't be printed at the end, as this only ends when the process is stopped
+            while (true) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> {
+                    try (socket) {
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException e) {
+                        Report.error("Connection closed: " + e.getMessage());
+                    }
+                }, "knn-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    /**
+     * Serves one client until it sends quit or closes its input. Lines are read and queued without waiting
+     * for their replies, so a client can send many requests at once and they can be batched together. A
+     * second thread writes the replies back in order.
+     * @param input Where the requests come from
+     * @param output Where the replies go
+     */
+    void serve(InputStream input, OutputStream output) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+        BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+        Request end = new Request("");     // marks the end of the requests for the writer
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Request request = pending.take();
+                    if (request == end) break;
+                    out.println(request.reply.join());
+                    if (pending.isEmpty()) out.flush();     // only flush once caught up
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.flush();
+        }, "knn-replies");
+        writer.start();
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isBlank()) continue;
+            if (line.trim().equals("quit")) break;
+            Request request = new Request(line);
+            pending.add(request);
+            queue.add(request);
+        }
+        pending.add(end);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A report of the time from receiving each request to its reply being ready
+     */
+    String latencyReport() {
+        return latencies.report();
+    }
+
+    /**
+     * The worker loop: take whatever is waiting, handle it as a batch, repeat.
+     */
+    private void work() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            try {
+                handle(batch);
+            } catch (RuntimeException | Error e) {
+                // every request needs a reply, or its client's writer would wait for it forever
+                for (Request request : batch) {
+                    if (!request.reply.isDone()) complete(request, "error: " + e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Handles a batch of requests in order. Runs of classifications are classified together, with any
+     * adds, removes or stats requests handled in between.
+     */
+    private void handle(List<Request> batch) {
+        int numFeatures = knn.numFeatures();
+        float[] values = new float[batch.size() * numFeatures];
+        List<Request> toClassify = new ArrayList<>();
+        for (Request request : batch) {
+            String[] tokens = request.line.split("\\s+");
+            try {
+                switch (tokens[0]) {
+                    case "add" -> {
+                        classify(toClassify, values);
+                        if (tokens.length != numFeatures + 2) {
+                            throw new IllegalArgumentException("add needs " + numFeatures + " values and a class");
+                        }
+                        float[] features = new float[numFeatures];
+                        for (int f = 0; f < numFeatures; f++) features[f] = Float.parseFloat(tokens[f + 1]);
+                        complete(request, Integer.toString(
+                                knn.addTrainingWine(features, Integer.parseInt(tokens[numFeatures + 1]))));
+                    }
+                    case "remove" -> {
+                        classify(toClassify, values);
+                        complete(request, knn.removeTrainingWine(Integer.parseInt(tokens[1])) ? "removed" : "not found");
+                    }
+                    case "stats" -> {
+                        classify(toClassify, values);
+                        complete(request, latencies.report().replace('\n', ' '));
+                    }
+                    default -> {
+                        if (tokens.length != numFeatures) {
+                            throw new IllegalArgumentException("expected " + numFeatures + " values");
+                        }
+                        int offset = toClassify.size() * numFeatures;
+                        for (int f = 0; f < numFeatures; f++) values[offset + f] = Float.parseFloat(tokens[f]);
+                        toClassify.add(request);
+                    }
+                }
+            } catch (RuntimeException e) {
+                complete(request, "error: " + e.getMessage());
+            }
+        }
+        classify(toClassify, values);
+    }
+
+    /**
+     * Classifies the requests gathered so far as one batch and replies to them.
+     */
+    private void classify(List<Request> toClassify, float[] values) {
+        if (toClassify.isEmpty()) return;
+        int[] predictions = knn.classifyBatch(values, toClassify.size());
+        for (int i = 0; i < toClassify.size(); i++) {
+            complete(toClassify.get(i), Integer.toString(predictions[i]));
+        }
+        toClassify.clear();
+    }
+
+    private void complete(Request request, String reply) {
+        latencies.record(System.nanoTime() - request.received);
+        request.reply.complete(reply);
+    }
+
+    /**
+     * Counts latencies in buckets that double in size (under 1us, 1-2us, 2-4us, ...), which is enough to
+     * see the shape and read off rough percentiles without keeping every latency.
+     */
+    static final class LatencyHistogram {
+        private final long[] counts = new long[40];
+        private long total = 0;
+        private long sumNanos = 0;
+        private long maxNanos = 0;
+
+        synchronized void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = micros == 0 ? 0 : Math.min(counts.length - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts[bucket]++;
+            total++;
+            sumNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * @return The upper bound (in microseconds) of the bucket holding the given fraction of requests
+         */
+        private long percentile(double fraction) {
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= target) return 1L << bucket;
+            }
+            return 1L << (counts.length - 1);
+        }
+
+        synchronized String report() {
+            if (total == 0) return "No requests yet";
+            StringBuilder report = new StringBuilder();
+            report.append("Requests: ").append(total)
+                    .append(String.format(", mean %.1f us, max %.1f us", sumNanos / 1000.0 / total, maxNanos / 1000.0))
+                    .append(", p50 <= ").append(percentile(0.5)).append(" us")
+                    .append(", p99 <= ").append(percentile(0.99)).append(" us");
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                if (counts[bucket] == 0) continue;
+                report.append("\n  < ").append(1L << bucket).append(" us: ").append(counts[bucket]);
+            }
+            return report.toString();
+        }
+    }
+}
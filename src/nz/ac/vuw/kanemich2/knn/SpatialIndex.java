@@ -0,0 +1,244 @@
+package nz.ac.vuw.kanemich2.knn;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for the tree indexes that KNN can use instead of going through every training wine.
+ * Both trees are built the same way: the training wines are split in half at the median of whichever
+ * feature is most spread out (after normalising by the range), until there are only a few wines left
+ * in each leaf. The subclasses decide what bound to keep on each node so whole branches can be skipped
+ * when they can't possibly hold a wine closer than the current k-th nearest.
+ * <br>
+ * The nodes are kept in flat arrays rather than objects, and the leaves point into one shared array
+ * of training wine indices (order).
+ */
+abstract class SpatialIndex {
+    static final int LEAF_SIZE = 8;
+    // KD-trees stop pruning well in higher dimensions, so past this a ball tree is used instead
+    static final int KD_TREE_MAX_DIMENSIONS = 12;
+
+    protected final float[] values;
+    protected final int numFeatures;
+    protected final double[] inverseRangesSquared;
+    protected final double[] scale;     // 1/R for each feature, so distances can be worked out in normalised space
+    protected final int[] order;        // training wine indices, arranged so each node covers a contiguous run
+
+    /* Node arrays, indexed by node id. left and right are -1 for a leaf */
+    protected int nodeCount = 0;
+    protected int[] start = new int[16];
+    protected int[] end = new int[16];
+    protected int[] left = new int[16];
+    protected int[] right = new int[16];
+    protected int[] splitFeature = new int[16];
+    protected float[] splitValue = new float[16];
+
+    /**
+     * Builds the tree over the given training wines.
+     * @param values The training wines' features, row-major
+     * @param numFeatures The number of features per wine
+     * @param inverseRangesSquared 1/R^2 for each feature
+     */
+    protected SpatialIndex(float[] values, int numFeatures, double[] inverseRangesSquared) {
+        this.values = values;
+        this.numFeatures = numFeatures;
+        this.inverseRangesSquared = inverseRangesSquared;
+        scale = new double[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            scale[f] = Math.sqrt(inverseRangesSquared[f]);
+        }
+        int numWines = values.length / numFeatures;
+        order = new int[numWines];
+        for (int i = 0; i < numWines; i++) order[i] = i;
+    }
+
+    /**
+     * Picks the index that suits the number of features: a KD-tree for low dimensions and a ball tree
+     * for higher ones.
+     * @param type "kd", "ball", or "auto" to choose by the number of features
+     * @return The built index
+     */
+    static SpatialIndex build(String type, float[] values, int numFeatures, double[] inverseRangesSquared) {
+        boolean useKdTree = switch (type) {
+            case "kd" -> true;
+            case "ball" -> false;
+            default -> numFeatures <= KD_TREE_MAX_DIMENSIONS;
+        };
+        SpatialIndex index = useKdTree ? new KdTree(values, numFeatures, inverseRangesSquared)
+                : new BallTree(values, numFeatures, inverseRangesSquared);
+        index.buildNode(0, index.order.length);
+        return index;
+    }
+
+    /**
+     * Writes the tree to an index file, see IndexFile.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(nodeCount);
+        IndexFile.writeInts(out, order, order.length);
+        IndexFile.writeInts(out, start, nodeCount);
+        IndexFile.writeInts(out, end, nodeCount);
+        IndexFile.writeInts(out, left, nodeCount);
+        IndexFile.writeInts(out, right, nodeCount);
+        IndexFile.writeInts(out, splitFeature, nodeCount);
+        for (int node = 0; node < nodeCount; node++) out.writeFloat(splitValue[node]);
+        writeBounds(out);
+    }
+
+    /**
+     * Reads back a tree written by writeTo, without having to build it again.
+     * @param buffer The index file, positioned at the start of the tree
+     * @param kdTree Whether it's a KD-tree or a ball tree
+     * @return The loaded index
+     */
+    static SpatialIndex readFrom(ByteBuffer buffer, boolean kdTree, float[] values, int numFeatures,
+                                 double[] inverseRangesSquared) {
+        SpatialIndex index = kdTree ? new KdTree(values, numFeatures, inverseRangesSquared)
+                : new BallTree(values, numFeatures, inverseRangesSquared);
+        int nodeCount = buffer.getInt();
+        index.nodeCount = nodeCount;
+        buffer.asIntBuffer().get(index.order);
+        buffer.position(buffer.position() + index.order.length * Integer.BYTES);
+        index.start = IndexFile.readInts(buffer, nodeCount);
+        index.end = IndexFile.readInts(buffer, nodeCount);
+        index.left = IndexFile.readInts(buffer, nodeCount);
+        index.right = IndexFile.readInts(buffer, nodeCount);
+        index.splitFeature = IndexFile.readInts(buffer, nodeCount);
+        index.splitValue = IndexFile.readFloats(buffer, nodeCount);
+        index.readBounds(buffer);
+        return index;
+    }
+
+    /**
+     * Lets the subclass write and read back the bounds it keeps for each node.
+     */
+    protected abstract void writeBounds(DataOutputStream out) throws IOException;
+
+    protected abstract void readBounds(ByteBuffer buffer);
+
+    /**
+     * Finds the nearest training wines to the query and puts them in the heap. The result is exact,
+     * the same as checking every training wine.
+     * @param query The array holding the query wine's features
+     * @param queryOffset Where the query wine starts in the array
+     * @param heap The heap to fill, sized to the k value
+     */
+    void search(float[] query, int queryOffset, NeighbourHeap heap) {
+        if (nodeCount > 0) searchNode(0, query, queryOffset, heap);
+    }
+
+    /**
+     * @return The name of the index to report to the user
+     */
+    abstract String name();
+
+    protected abstract void searchNode(int node, float[] query, int queryOffset, NeighbourHeap heap);
+
+    /**
+     * Called once a node's wines have been gathered into order[from..to), so the subclass can work out its bound.
+     */
+    protected abstract void nodeBuilt(int node, int from, int to);
+
+    /**
+     * Offers every training wine in a leaf to the heap.
+     */
+    protected void searchLeaf(int node, float[] query, int queryOffset, NeighbourHeap heap) {
+        for (int i = start[node]; i < end[node]; i++) {
+            int wine = order[i];
+            heap.offer(KNN.normalisedDistanceSquared(query, queryOffset, values, wine * numFeatures,
+                    inverseRangesSquared), wine);
+        }
+    }
+
+    /**
+     * Recursively builds the node covering order[from..to).
+     * @return The new node's id
+     */
+    private int buildNode(int from, int to) {
+        int node = newNode(from, to);
+        if (to - from > LEAF_SIZE) {
+            // find the feature with the biggest normalised spread in this node
+            int bestFeature = -1;
+            double bestSpread = 0;
+            for (int f = 0; f < numFeatures; f++) {
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    float value = values[order[i] * numFeatures + f];
+                    if (value < min) min = value;
+                    if (value > max) max = value;
+                }
+                double spread = (max - min) * scale[f];
+                if (spread > bestSpread) {
+                    bestSpread = spread;
+                    bestFeature = f;
+                }
+            }
+            if (bestFeature >= 0) {     // otherwise every wine in here is identical, so leave it as a leaf
+                int mid = (from + to) >>> 1;
+                select(from, to, mid, bestFeature);
+                splitFeature[node] = bestFeature;
+                splitValue[node] = values[order[mid] * numFeatures + bestFeature];
+                int leftNode = buildNode(from, mid);
+                int rightNode = buildNode(mid, to);
+                left[node] = leftNode;
+                right[node] = rightNode;
+            }
+        }
+        nodeBuilt(node, from, to);
+        return node;
+    }
+
+    private int newNode(int from, int to) {
+        if (nodeCount == start.length) {
+            int capacity = nodeCount * 2;
+            start = java.util.Arrays.copyOf(start, capacity);
+            end = java.util.Arrays.copyOf(end, capacity);
+            left = java.util.Arrays.copyOf(left, capacity);
+            right = java.util.Arrays.copyOf(right, capacity);
+            splitFeature = java.util.Arrays.copyOf(splitFeature, capacity);
+            splitValue = java.util.Arrays.copyOf(splitValue, capacity);
+            grow(capacity);
+        }
+        int node = nodeCount++;
+        start[node] = from;
+        end[node] = to;
+        left[node] = -1;
+        right[node] = -1;
+        return node;
+    }
+
+    /**
+     * Lets the subclass grow any node arrays of its own alongside the shared ones.
+     */
+    protected void grow(int capacity) {}
+
+    /**
+     * Quickselect on order[from..to) so that order[nth] holds the wine with the nth smallest value for
+     * the feature, with smaller or equal values before it and larger or equal values after it.
+     */
+    private void select(int from, int to, int nth, int feature) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            float pivot = values[order[(lo + hi) >>> 1] * numFeatures + feature];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[order[i] * numFeatures + feature] < pivot) i++;
+                while (values[order[j] * numFeatures + feature] > pivot) j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) hi = j;
+            else if (nth >= i) lo = i;
+            else return;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package nz.ac.vuw.kanemich2.perceptron;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads the instances of a data file one at a time, and can go back to the start for another pass, so
+ * training never needs the whole file in memory. It reads either the normal text data file or the binary
+ * file made from one by convert(), which is much quicker to go through again and again as there's nothing
+ * to parse.
+ * <br>
+ * The binary file is read by memory-mapping WINDOW_BYTES of it at a time, so it can be any size, and the
+ * only memory it takes up is the OS page cache, which the OS can free whenever it likes.
+ * <br>
+ * Layout of the binary file (big-endian, as written by DataOutputStream):
+ * <pre>
+ *   int   MAGIC, int VERSION
+ *   int   number of inputs
+ *   int   number of classes, then each class name (int length, UTF-8 bytes), in sorted order
+ *   long  number of instances
+ *   then for each instance: int class id, double inputs[number of inputs]
+ * </pre>
+ */
+abstract class DataStream implements Closeable {
+    static final int MAGIC = 0x50435054;     // "PCPT"
+    static final int VERSION = 1;
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    protected String[] classNames;
+    protected int numInputs;
+    protected long size;
+
+    /**
+     * Opens a data file to read, either a binary file or a text one
+     * @param fileName The name of the file
+     * @return The stream, at the first instance
+     */
+    static DataStream open(String fileName) throws IOException {
+        return isBinaryFile(fileName) ? new MappedStream(fileName) : new TextStream(fileName);
+    }
+
+    /**
+     * Checks the first few bytes of the file to see if it's a binary file rather than a text file.
+     * @param fileName The name of the file
+     * @return true if it starts with the binary file's magic number
+     */
+    static boolean isBinaryFile(String fileName) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false;   // missing or too short, either way not a binary file
+        }
+    }
+
+    /**
+     * Converts a text data file to a binary one, one instance at a time.
+     * @param textFile The text file to read
+     * @param binaryFile The binary file to write
+     */
+    static void convert(String textFile, String binaryFile) throws IOException {
+        try (DataStream in = new TextStream(textFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(binaryFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(in.numInputs);
+            out.writeInt(in.classNames.length);
+            for (String name : in.classNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeLong(in.size);
+            double[] row = new double[in.numInputs + 1];
+            int classId;
+            while ((classId = in.next(row, 0)) >= 0) {
+                out.writeInt(classId);
+                for (int i = 1; i < row.length; i++) out.writeDouble(row[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The classes in the file in sorted order, indexed by class id
+     */
+    String[] classNames() {
+        return classNames;
+    }
+
+    /**
+     * @return The number of inputs of each instance, not counting the bias
+     */
+    int numInputs() {
+        return numInputs;
+    }
+
+    /**
+     * @return The number of instances in the file
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Reads the next instance into a row of an array, with a 1 in front of the inputs for the bias.
+     * @param row Where to put it
+     * @param offset Where in row the instance starts
+     * @return The id of the instance's class, or -1 if there are no more instances
+     */
+    abstract int next(double[] row, int offset) throws IOException;
+
+    /**
+     * Goes back to the first instance
+     */
+    abstract void rewind() throws IOException;
+
+    /**
+     * Reads the text data file, the same format Perceptron.readFile() reads, apart from sparse files. The
+     * file is read through once when it's opened, just for the class names, so they can be given ids in
+     * sorted order.
+     */
+    private static class TextStream extends DataStream {
+        private final String fileName;
+        private final Map<String, Integer> classIds = new HashMap<>();
+        private BufferedReader in;
+
+        TextStream(String fileName) throws IOException {
+            this.fileName = fileName;
+            SortedSet<String> names = new TreeSet<>();
+            numInputs = -1;
+            rewind();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) continue;
+                if (line.contains(":")) {
+                    throw new IOException("streaming can't read sparse files");
+                }
+                String[] tokens = line.split(" ");
+                if (numInputs < 0) numInputs = tokens.length - 1;
+                names.add(tokens[tokens.length - 1]);
+                size++;
+            }
+            if (size == 0) throw new IOException("there are no instances");
+            classNames = names.toArray(new String[0]);
+            for (int c = 0; c < classNames.length; c++) classIds.put(classNames[c], c);
+            rewind();
+        }
+
+        @Override
+        int next(double[] row, int offset) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) return -1;
+            } while (line.isBlank());
+            String[] tokens = line.split(" ");
+            if (tokens.length != numInputs + 1) {
+                throw new IOException("an instance has " + (tokens.length - 1) + " inputs instead of " + numInputs);
+            }
+            row[offset] = 1;    // x0 = 1, for the bias
+            for (int i = 0; i < numInputs; i++) {
+                row[offset + 1 + i] = Double.parseDouble(tokens[i]);
+            }
+            return classIds.get(tokens[numInputs]);
+        }
+
+        @Override
+        void rewind() throws IOException {
+            close();
+            in = new BufferedReader(new FileReader(fileName), 1 << 16);
+            in.readLine();      // Ignore the first line as it's all the labels
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) in.close();
+        }
+    }
+
+    /**
+     * Reads the binary file, mapping a window of whole instances at a time and moving it along the file.
+     */
+    private static class MappedStream extends DataStream {
+        private final FileChannel channel;
+        private final long dataStart;       // where the first instance starts in the file
+        private final int rowBytes;
+        private final long rowsPerWindow;
+        private MappedByteBuffer window;
+        private long nextRow = 0;
+        private long windowEnd = 0;         // the row after the last one in the window
+
+        MappedStream(String fileName) throws IOException {
+            channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+            DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("not a perceptron binary file, or from a different version");
+            }
+            numInputs = header.readInt();
+            classNames = new String[header.readInt()];
+            long headerBytes = 4 * Integer.BYTES + Long.BYTES;
+            for (int c = 0; c < classNames.length; c++) {
+                byte[] bytes = new byte[header.readInt()];
+                header.readFully(bytes);
+                classNames[c] = new String(bytes, StandardCharsets.UTF_8);
+                headerBytes += Integer.BYTES + bytes.length;
+            }
+            size = header.readLong();
+            dataStart = headerBytes;
+            rowBytes = Integer.BYTES + numInputs * Double.BYTES;
+            rowsPerWindow = Math.max(1, WINDOW_BYTES / rowBytes);
+            if (channel.size() != dataStart + size * rowBytes) {
+                throw new IOException("the file is the wrong size, it might not have been finished");
+            }
+        }
+
+        @Override
+        int next(double[] row, int offset) throws IOException {
+            if (nextRow == size) return -1;
+            if (nextRow == windowEnd) {
+                windowEnd = Math.min(size, nextRow + rowsPerWindow);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + nextRow * rowBytes,
+                        (windowEnd - nextRow) * rowBytes);
+            }
+            int classId = window.getInt();
+            row[offset] = 1;    // x0 = 1, for the bias
+            for (int i = 1; i <= numInputs; i++) {
+                row[offset + i] = window.getDouble();
+            }
+            nextRow++;
+            return classId;
+        }
+
+        @Override
+        void rewind() {
+            nextRow = 0;
+            windowEnd = 0;
+            window = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
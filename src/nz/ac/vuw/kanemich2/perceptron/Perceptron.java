@@ -5,34 +5,146 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+import nz.ac.vuw.kanemich2.report.Report;
 
 public class Perceptron {
-    private record Instance(ArrayList<Double> inputs, String classifier, int d){}
-    private List<Instance> instances;
-    private Map<String, Integer> classifiers;
+    /**
+     * The instances stored as one flat row-major array, with a 1 in front of each instance's inputs so the
+     * bias is just weight 0 rather than a special case. Instance i's row is inputs[i*numColumns] to
+     * inputs[i*numColumns + numColumns - 1], its class is classifiers[i] and the id of its class is classIds[i].
+     * <br>
+     * A sparse file only stores the inputs that aren't zero. Then instance i's inputs are
+     * inputs[rowStarts[i]] to inputs[rowStarts[i+1] - 1], each one the input in column indices[j] (with the
+     * bias first, in column 0), and numColumns is the number of weights. rowStarts and indices are null for
+     * a dense file.
+     */
+    private record InstanceSet(double[] inputs, int[] classIds, String[] classifiers, int numColumns,
+                               int[] rowStarts, int[] indices) {
+        int size() {
+            return classIds.length;
+        }
+
+        boolean isSparse() {
+            return indices != null;
+        }
+    }
+    /**
+     * The weights learnt for one perceptron, how many iterations it took, and how many instances it still
+     * classified wrongly in the last one
+     */
+    private record Result(double[] weights, int iterations, int failCount) {}
+    private InstanceSet instances;
+    private String[] classNames;    // the classes found in the file in sorted order, indexed by class id
+    private Map<String, Integer> classifiers;   // the id of each class
     private final static int MAX_ITERATIONS = 100;
     private final static double LEARNING_RATE = 0.1;
+    private final static int CHUNK_SIZE = 256;     // instances per partial sum of changes in a mini-batch
+    private int threads = 1;
+    private ForkJoinPool pool;      // only used with more than one thread
+    private int batchSize = 0;      // 0 updates the weights after every instance, rather than in mini-batches
+    private final static int SHUFFLE_BUFFER = 4096;    // instances held in memory to shuffle when streaming
+    private final static long SHUFFLE_SEED = 307;
+    private boolean streaming = false;
+    private String dataFileName;        // the file to stream, or to convert with --save-binary
+    private String binaryFileToSave;
 
 
     public Perceptron(String[] args) {
-        if (args.length != 1) {
-            System.out.println("USAGE ass1-perceptron.jar <data-filename>");
-            System.exit(0);
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--threads")) {
+                threads = Runtime.getRuntime().availableProcessors();
+            } else if (arg.startsWith("--threads=")) {
+                threads = parsePositiveOption(arg, "--threads=");
+            } else if (arg.startsWith("--batch=")) {
+                batchSize = parsePositiveOption(arg, "--batch=");
+            } else if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--save-binary")) {
+                binaryFileToSave = "";      // the file name is the second positional argument
+            } else if (arg.startsWith("--")) {
+                Report.error("Unknown option: " + arg);
+                printUsage();
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length != (binaryFileToSave != null ? 2 : 1)) {
+            printUsage();
+        } else if (streaming && (threads > 1 || batchSize > 0)) {
+            Report.error("--stream trains in one thread, so can't be used with --threads or --batch");
+            System.exit(1);
+        } else if (binaryFileToSave != null || streaming) {
+            // nothing is read until training (or converting) starts
+            dataFileName = args[0];
+            if (binaryFileToSave != null) binaryFileToSave = args[1];
         } else {
-            // Hard coding the classes 'g' and 'b' into 1 and 0.
-            // This will probably not work for more general files.
-            // Should be okay for the scope of the assignment.
-            classifiers = new HashMap<>();
-            classifiers.put("g", 1);
-            classifiers.put("b", 0);
             instances = readFile(args[0]);
-            System.out.println("Number of instances loaded: " + instances.size());
-            System.out.println("Number of inputs per instance: " + instances.get(0).inputs.size());
+            Report.info("Number of instances loaded: " + instances.size());
+            if (instances.isSparse()) {
+                // not counting the bias
+                Report.info("Number of inputs per instance: " + (instances.numColumns - 1) + " (sparse, " +
+                        (float) (instances.inputs.length - instances.size()) / instances.size() +
+                        " not zero on average)");
+                if (batchSize > 0) {
+                    Report.error("--batch can't be used with a sparse file.");
+                    System.exit(1);
+                }
+            } else {
+                Report.info("Number of inputs per instance: " + (instances.numColumns - 1));
+            }
+            if (classNames.length > 2) {
+                Report.info("Classes: " + String.join(" ", classNames));
+            }
+        }
+    }
+
+    private static void printUsage() {
+        Report.error("USAGE ass1-perceptron.jar <data-filename> [--threads[=n]] [--batch=n] [--stream]");
+        Report.error("      ass1-perceptron.jar --save-binary <data-filename> <binary-filename>");
+        System.exit(1);
+    }
+
+    /**
+     * Reads the number from an option such as --threads=4, exiting if it isn't a positive integer.
+     * @param arg The whole option
+     * @param prefix The option up to and including the '='
+     * @return The number given
+     */
+    private static int parsePositiveOption(String arg, String prefix) {
+        try {
+            int value = Integer.parseInt(arg.substring(prefix.length()));
+            if (value > 0) return value;
+        } catch (NumberFormatException ignored) {
         }
+        Report.error("The value for " + prefix.substring(0, prefix.length() - 1) +
+                " needs to be a positive integer.");
+        System.exit(1);
+        return 0;
     }
 
-    private List<Instance> readFile(String fileName) {
-        List<Instance> fileData = new ArrayList<>();
+    /**
+     * Reads the data file. The classes are whatever labels are in the last column, and are given ids in
+     * sorted order, so with two classes the one that sorts last (g for ionosphere.data) is class 1, the one
+     * the perceptron outputs 1 for.
+     * <br>
+     * If the inputs on the first instance's line are written as index:value pairs, the file is sparse and
+     * is read by readSparseLines() instead.
+     * @param fileName The name of the data file
+     */
+    private InstanceSet readFile(String fileName) {
+        if (DataStream.isBinaryFile(fileName)) return readBinaryFile(fileName);
+        double[] inputs = new double[0];
+        int[] rowStarts = null;
+        int[] indices = null;
+        String[] instanceClasses = new String[16];
+        int numColumns = 0;
+        int numInstances = 0;
         try {
             FileReader fr = new FileReader(fileName);
             BufferedReader br = new BufferedReader(fr);
@@ -42,100 +154,666 @@ public class Perceptron {
             while ((line = br.readLine()) != null) {
                 if (isFirstLine) {
                     isFirstLine = false;       // Ignore the first line as it's all the labels
+                } else if (indices != null || line.contains(":")) {
+                    // the sparse format, the rest of the file is read in one go
+                    SparseLines sparse = readSparseLines(line, br, fileName);
+                    inputs = sparse.values;
+                    rowStarts = sparse.rowStarts;
+                    indices = sparse.indices;
+                    instanceClasses = sparse.classes;
+                    numColumns = sparse.numColumns;
+                    numInstances = sparse.classes.length;
                 } else {
                     String[] tokens = line.split(" ");
-                    ArrayList<Double> inputs = new ArrayList<>();
+                    if (numInstances == 0) {
+                        numColumns = tokens.length;     // the inputs plus the bias column
+                        inputs = new double[16 * numColumns];
+                    }
+                    if (numInstances == instanceClasses.length) {     // grow the arrays as needed
+                        instanceClasses = Arrays.copyOf(instanceClasses, numInstances * 2);
+                        inputs = Arrays.copyOf(inputs, numInstances * 2 * numColumns);
+                    }
+                    int row = numInstances * numColumns;
+                    inputs[row] = 1;    // x0 = 1, for the bias
                     for (int i = 0; i < tokens.length - 1; i++) {
-                        inputs.add(Double.parseDouble(tokens[i]));
+                        inputs[row + 1 + i] = Double.parseDouble(tokens[i]);
                     }
                     String instanceClass = tokens[tokens.length - 1];
-                    fileData.add(new Instance(inputs, instanceClass, classifiers.get(instanceClass)));
+                    instanceClasses[numInstances] = instanceClass;
+                    numInstances++;
                 }
             }
             // close resources
             fr.close();
             br.close();
         } catch (FileNotFoundException e) {
-            System.err.println("File \"" + fileName + "\" not found.");
-            System.err.println("Make sure file is in same directory as the jar file. " +
+            Report.error("File \"" + fileName + "\" not found.");
+            Report.error("Make sure file is in same directory as the jar file. " +
                     "Otherwise you need to include the entire filepath too.");
-            System.exit(0);
+            System.exit(1);
         } catch (IOException e) {
-            System.out.println("Something went wrong reading the file: " + fileName);
+            Report.summary("Something went wrong reading the file: " + fileName);
             throw new RuntimeException(e);
         }
 
-        return fileData;
+        instanceClasses = Arrays.copyOf(instanceClasses, numInstances);
+        setClassNames(Arrays.stream(instanceClasses).distinct().sorted().toArray(String[]::new));
+        int[] classIds = new int[numInstances];
+        for (int i = 0; i < numInstances; i++) {
+            classIds[i] = classifiers.get(instanceClasses[i]);
+        }
+        if (indices != null) {
+            return new InstanceSet(inputs, classIds, instanceClasses, numColumns, rowStarts, indices);
+        }
+        // trim the array down to the number of instances actually read
+        return new InstanceSet(Arrays.copyOf(inputs, numInstances * numColumns), classIds, instanceClasses,
+                numColumns, null, null);
+    }
+
+    /**
+     * Sets the classes, and gives each one its id
+     * @param names The classes in sorted order
+     */
+    private void setClassNames(String[] names) {
+        classNames = names;
+        classifiers = new HashMap<>();
+        for (int c = 0; c < classNames.length; c++) {
+            classifiers.put(classNames[c], c);
+        }
+    }
+
+    /**
+     * Reads all of a binary file made with --save-binary into memory, to train on it the usual way.
+     * @param fileName The name of the binary file
+     */
+    private InstanceSet readBinaryFile(String fileName) {
+        try (DataStream stream = DataStream.open(fileName)) {
+            int numColumns = stream.numInputs() + 1;
+            if (stream.size() * numColumns > Integer.MAX_VALUE - 8) {
+                Report.error("\"" + fileName + "\" is too big to load into memory, use --stream to train on it.");
+                System.exit(1);
+            }
+            int numInstances = (int) stream.size();
+            setClassNames(stream.classNames());
+            double[] inputs = new double[numInstances * numColumns];
+            int[] classIds = new int[numInstances];
+            String[] instanceClasses = new String[numInstances];
+            for (int i = 0; i < numInstances; i++) {
+                classIds[i] = stream.next(inputs, i * numColumns);
+                instanceClasses[i] = classNames[classIds[i]];
+            }
+            return new InstanceSet(inputs, classIds, instanceClasses, numColumns, null, null);
+        } catch (IOException e) {
+            Report.error("Couldn't read \"" + fileName + "\": " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * The instances of a sparse file, before the classes are given ids
+     */
+    private record SparseLines(double[] values, int[] rowStarts, int[] indices, String[] classes, int numColumns) {}
+
+    /**
+     * Reads the instances of a sparse file, where each line is the inputs that aren't zero as index:value
+     * pairs (the indices starting at 1), followed by the class. For example "3:0.5 17:1 g". Exits if a pair
+     * can't be read.
+     * @param firstLine The first instance's line, which has already been read
+     * @param br The rest of the file
+     * @param fileName The name of the file, for the error message
+     */
+    private SparseLines readSparseLines(String firstLine, BufferedReader br, String fileName) throws IOException {
+        double[] values = new double[1024];
+        int[] indices = new int[1024];
+        int[] rowStarts = new int[17];
+        String[] classes = new String[16];
+        int numValues = 0;
+        int numInstances = 0;
+        int maxIndex = 0;
+        for (String line = firstLine; line != null; line = br.readLine()) {
+            if (line.isBlank()) continue;
+            String[] tokens = line.trim().split("\\s+");
+            if (numInstances == classes.length) {
+                classes = Arrays.copyOf(classes, numInstances * 2);
+                rowStarts = Arrays.copyOf(rowStarts, numInstances * 2 + 1);
+            }
+            if (numValues + tokens.length > values.length) {
+                int capacity = Math.max(values.length * 2, numValues + tokens.length);
+                values = Arrays.copyOf(values, capacity);
+                indices = Arrays.copyOf(indices, capacity);
+            }
+            rowStarts[numInstances] = numValues;
+            indices[numValues] = 0;     // x0 = 1, for the bias
+            values[numValues++] = 1;
+            for (int t = 0; t < tokens.length - 1; t++) {
+                int colon = tokens[t].indexOf(':');
+                try {
+                    int index = colon < 0 ? -1 : Integer.parseInt(tokens[t].substring(0, colon));
+                    if (index < 1) throw new NumberFormatException();
+                    indices[numValues] = index;
+                    values[numValues++] = Double.parseDouble(tokens[t].substring(colon + 1));
+                    maxIndex = Math.max(maxIndex, index);
+                } catch (NumberFormatException e) {
+                    Report.error("\"" + tokens[t] + "\" in " + fileName + " isn't an index:value pair " +
+                            "with an index of at least 1.");
+                    System.exit(1);
+                }
+            }
+            classes[numInstances++] = tokens[tokens.length - 1];
+        }
+        rowStarts[numInstances] = numValues;
+        return new SparseLines(Arrays.copyOf(values, numValues), Arrays.copyOf(rowStarts, numInstances + 1),
+                Arrays.copyOf(indices, numValues), Arrays.copyOf(classes, numInstances), maxIndex + 1);
     }
 
     private void buildPerceptron() {
-        System.out.println("Building perceptron with learning rate of " + LEARNING_RATE);
+        if (threads > 1) pool = new ForkJoinPool(threads);
+        if (classNames.length > 2) {
+            buildOneVsRest();
+        } else {
+            Report.info("Building perceptron with learning rate of " + LEARNING_RATE);
+            Result result = train(1, true);
+            if (result.failCount == 0) {
+                Report.summary("\nSuccessfully converged!");
+                Report.summary("Number of iterations to convergence: " + result.iterations);
+            } else {
+                Report.summary("\nFailed to converge after " + MAX_ITERATIONS + " iterations");
+                Report.summary("Number of instances still classified wrongly: " + result.failCount);
+            }
+            // there could be thousands of weights for a sparse file
+            Report.println(instances.isSparse() ? Report.Level.VERBOSE : Report.Level.NORMAL,
+                    "\nFinal weights:\n" + Arrays.toString(result.weights));
+            Report.metric("iterations", result.iterations);
+            Report.metric("converged", result.failCount == 0);
+            Report.metric("misclassified", result.failCount);
+            int successCount = instances.size() - result.failCount;
+            if (instances.isSparse()) {
+                // the counts above are for the weights during training, not the averaged ones
+                successCount = 0;
+                for (int inst = 0; inst < instances.size(); inst++) {
+                    if (predict(new double[][]{result.weights}, inst) == instances.classIds[inst]) successCount++;
+                }
+                Report.summary("Classified correctly with the averaged weights: " + successCount + " out of " +
+                        instances.size());
+            }
+            Report.metric("accuracy", (double) successCount / instances.size());
+            if (Report.recording()) recordPredictions(new double[][]{result.weights});
+        }
+        if (pool != null) pool.shutdown();
+    }
+
+    /**
+     * Trains one perceptron that outputs 1 for the instances in one class and 0 for all the others. With two
+     * classes that's the whole thing, and with more there's one of these for each class.
+     * @param positiveClass The id of the class to output 1 for
+     * @param reporting true to print the progress as it goes, false to leave that to the caller
+     * @return The weights learnt and how well they did
+     */
+    private Result train(int positiveClass, boolean reporting) {
         // Initialise weights
-        List<Double> weights = new ArrayList<>();
+        int numColumns = instances.numColumns;
+        double[] weights = new double[numColumns];     // weight 0 is the bias, since x0 = 1
         Random rd = new Random();
-        for (int i = 0; i < instances.get(0).inputs.size() + 1; i++) {  //one extra weight for the bias
-            //weights.add(rd.nextDouble());
-            weights.add(0.0);   // all weights are initially zero, if wanting random weights comment
+        for (int i = 0; i < numColumns; i++) {
+            //weights[i] = rd.nextDouble();
+            weights[i] = 0.0;   // all weights are initially zero, if wanting random weights comment
                                 // this out and uncomment the line above
         }
+        // the change to the weights from each chunk of a mini-batch
+        double[][] deltas = batchSize > 0 ? new double[(batchSize + CHUNK_SIZE - 1) / CHUNK_SIZE][numColumns] : null;
+        // one-vs-rest trains the perceptrons in parallel with each other, rather than each one on several threads
+        boolean threaded = reporting && pool != null && !instances.isSparse();
+        boolean parallel = threaded || batchSize > 0;
+        // for a sparse file, the sum of each change to the weights times when it was made, for averaging
+        double[] weightedChanges = instances.isSparse() ? new double[numColumns] : null;
         int failCount = 0;
+        int iterations = 0;
         for (int z = 0; z < MAX_ITERATIONS; z++) {
-            // reset counts
-            int successCount = 0;
-            failCount = 0;
-            for (Instance inst: instances) {
-                int wi = 0;  // Setting weight index
-                double sum = weights.get(wi);    // Starting sum with weight w0
-
-                wi++;    // i = 1, referring to weight w1
-                for (double input : inst.inputs) {
-                    sum += weights.get(wi)*input;
-                    wi++;
+            iterations++;
+            long start = System.nanoTime();
+            int successCount;
+            if (instances.isSparse()) {
+                successCount = trainSparseRows(weights, weightedChanges, positiveClass, (long) z * instances.size());
+            } else if (batchSize > 0) {
+                successCount = miniBatchEpoch(weights, positiveClass, deltas, threaded);
+            } else if (threaded) {
+                successCount = hogwildEpoch(weights, positiveClass);
+            } else {
+                successCount = trainRows(weights, instances.inputs, instances.classIds, positiveClass, 0,
+                        instances.size());
+            }
+            failCount = instances.size() - successCount;
+            if (!reporting) {
+                if (failCount == 0) break;
+                continue;
+            }
+            if (parallel) {
+                Report.printf(Report.Level.NORMAL, "Epoch %d: %d out of %d instances correct (%.1f ms)%n", z+1,
+                        successCount, instances.size(), (System.nanoTime() - start) / 1e6);
+            } else if (Report.shows(Report.Level.VERBOSE)) {
+                Report.detail("\nIteration: " + (z+1));
+                Report.detail("Success rate: " + successCount + " out of " + instances.size() + " instances");
+                Report.detail("Accuracy: " + (double)successCount/instances.size()*100 + "%");
+            }
+            if (successCount == instances.size()) break;
+        }
+        if (instances.isSparse()) {
+            // the average is the weights minus the weighted changes over the number of instances seen (plus 1)
+            double count = (double) iterations * instances.size() + 1;
+            for (int i = 0; i < numColumns; i++) {
+                weights[i] -= weightedChanges[i] / count;
+            }
+        }
+        return new Result(weights, iterations, failCount);
+    }
+
+    /**
+     * Handles more than two classes by training a perceptron for each class that separates it from all the
+     * rest (one-vs-rest), and predicting the class whose perceptron gives the highest sum. The perceptrons
+     * are independent of each other, so with --threads they're all trained at the same time, each on its own
+     * thread, reading the same input matrix.
+     */
+    private void buildOneVsRest() {
+        int numClasses = classNames.length;
+        Report.info("Building " + numClasses + " one-vs-rest perceptrons with learning rate of " + LEARNING_RATE);
+        long start = System.nanoTime();
+        Result[] results;
+        if (pool == null) {
+            results = IntStream.range(0, numClasses).mapToObj(c -> train(c, false)).toArray(Result[]::new);
+        } else {
+            results = pool.submit(() -> IntStream.range(0, numClasses).parallel()
+                    .mapToObj(c -> train(c, false)).toArray(Result[]::new)).join();
+        }
+        Report.printf(Report.Level.NORMAL, "Trained in %.1f ms%n%n", (System.nanoTime() - start) / 1e6);
+
+        double[][] weights = new double[numClasses][];
+        for (int c = 0; c < numClasses; c++) {
+            Result result = results[c];
+            weights[c] = result.weights;
+            if (result.failCount == 0) {
+                Report.info("Class " + classNames[c] + ": converged after " + result.iterations + " iterations");
+            } else {
+                Report.info("Class " + classNames[c] + ": " + result.failCount +
+                        " instances still classified wrongly after " + result.iterations + " iterations");
+            }
+            Report.detail("Final weights:\n" + Arrays.toString(result.weights));
+        }
+        int successCount = 0;
+        for (int inst = 0; inst < instances.size(); inst++) {
+            if (predict(weights, inst) == instances.classIds[inst]) successCount++;
+        }
+        Report.summary("\nCorrectly classified " + successCount + " out of " + instances.size() +
+                " instances, accuracy " + (double) successCount / instances.size() * 100 + "%");
+        Report.metric("classes", numClasses);
+        Report.metric("correct", successCount);
+        Report.metric("accuracy", (double) successCount / instances.size());
+        if (Report.recording()) recordPredictions(weights);
+    }
+
+    /**
+     * Goes through the instances from (inclusive) to to (exclusive) once, adjusting the weights straight
+     * after each one that's classified wrongly.
+     * @param inputs The instances' rows, with the bias column
+     * @param classIds The instances' class ids
+     * @param positiveClass The id of the class the perceptron should output 1 for
+     * @return The number of instances classified correctly
+     */
+    private static int trainRows(double[] weights, double[] inputs, int[] classIds, int positiveClass,
+                                 int from, int to) {
+        int numColumns = weights.length;
+        int successCount = 0;
+        for (int inst = from, row = from * numColumns; inst < to; inst++, row += numColumns) {
+            double sum = 0;
+            for (int i = 0; i < numColumns; i++) {
+                sum += weights[i] * inputs[row + i];
+            }
+            int y;                                              // Predicted value
+            int d = classIds[inst] == positiveClass ? 1 : 0;    // Expected value
+            // Should probably give more meaningful variable names,
+            // but it was easier to visualise the math this way
+
+            if(sum > 0) y = 1;
+            else y = 0;
+
+            if (y == d) {
+                successCount++;    // No learning taking place
+            } else {
+                // adjust weights, the bias included since its input is 1
+                double adjust = LEARNING_RATE * (d - y);
+                for (int i = 0; i < numColumns; i++) {
+                    weights[i] += adjust * inputs[row + i];
                 }
-                int y;              // Predicted value
-                int d = inst.d;     // Expected value
-                // Should probably give more meaningful variable names,
-                // but it was easier to visualise the math this way
+            }
+        }
+        return successCount;
+    }
 
-                if(sum > 0) y = 1;
-                else y = 0;
+    /**
+     * Goes through every instance of a sparse file once, like trainRows(), but only touching the weights for
+     * the instance's inputs that aren't zero, so it takes time in proportion to the number of those rather
+     * than the number of columns.
+     * <br>
+     * The perceptron for a sparse file is an averaged perceptron: it ends up with the average of what the
+     * weights were after every instance, which copes much better with data that isn't linearly separable
+     * than just the final weights do. Adding the weights to a running total after every instance would touch
+     * every weight every time though. So instead, each change to a weight is also added to weightedChanges
+     * times the number of instances seen so far (c), and at the end the average is worked out all at once
+     * as weights - weightedChanges / c.
+     * @param weightedChanges The sum of each change times c so far, which is added to
+     * @param seenBefore The number of instances seen in earlier epochs
+     * @return The number of instances classified correctly
+     */
+    private int trainSparseRows(double[] weights, double[] weightedChanges, int positiveClass, long seenBefore) {
+        double[] values = instances.inputs;
+        int[] indices = instances.indices;
+        int[] rowStarts = instances.rowStarts;
+        int[] classIds = instances.classIds;
+        int successCount = 0;
+        for (int inst = 0; inst < instances.size(); inst++) {
+            int start = rowStarts[inst];
+            int end = rowStarts[inst + 1];
+            double sum = 0;
+            for (int j = start; j < end; j++) {
+                sum += weights[indices[j]] * values[j];
+            }
+            int y = sum > 0 ? 1 : 0;
+            int d = classIds[inst] == positiveClass ? 1 : 0;
+            if (y == d) {
+                successCount++;
+            } else {
+                double adjust = LEARNING_RATE * (d - y);
+                double weightedAdjust = adjust * (seenBefore + inst + 1);
+                for (int j = start; j < end; j++) {
+                    weights[indices[j]] += adjust * values[j];
+                    weightedChanges[indices[j]] += weightedAdjust * values[j];
+                }
+            }
+        }
+        return successCount;
+    }
 
-                if (y == d) {
-                    successCount++;    // No learning taking place
-                } else {
-                    failCount++;
-                    // adjust weights
-                    // resetting weight index
-                    wi = 0;
-
-                    double adjust = LEARNING_RATE * (d - y);
-                    double replace = weights.get(wi) + adjust;    // because x0 = 1
-                    weights.set(wi,replace);
-                    wi++;
-                    for (double input : inst.inputs) {
-                        replace = weights.get(wi) + (adjust*input);
-                        weights.set(wi, replace);
-                        wi++;
+    /**
+     * One epoch of Hogwild training: the instances are split into a shard for each thread, and every thread
+     * trains on its own shard at the same time, all adjusting the same weights without any locking. A thread
+     * can now and then overwrite another's change to a weight, but the changes are small and it still
+     * converges, and the threads never wait for each other until the end of the epoch. The result depends on
+     * how the threads happen to interleave, so it can be different each run.
+     * @return The number of instances classified correctly
+     */
+    private int hogwildEpoch(double[] weights, int positiveClass) {
+        int size = instances.size();
+        return pool.submit(() -> IntStream.range(0, threads).parallel().map(shard ->
+                trainRows(weights, instances.inputs, instances.classIds, positiveClass,
+                        (int) ((long) size * shard / threads),
+                        (int) ((long) size * (shard + 1) / threads))).sum()).join();
+    }
+
+    /**
+     * One epoch of mini-batch training: each batch of instances is classified with the weights as they were
+     * at the start of the batch, and the changes for the ones classified wrongly are added up and applied
+     * together at the end of it. The batch is split into chunks of CHUNK_SIZE instances, which are shared out
+     * between the threads, and the chunks' changes are added to the weights in order. So the result is the
+     * same every run, whatever the number of threads.
+     * @param deltas Somewhere to put the changes from each chunk
+     * @param threaded true to share the chunks out between the threads
+     * @return The number of instances classified correctly
+     */
+    private int miniBatchEpoch(double[] weights, int positiveClass, double[][] deltas, boolean threaded) {
+        int size = instances.size();
+        int numColumns = instances.numColumns;
+        int successCount = 0;
+        for (int batchStart = 0; batchStart < size; batchStart += batchSize) {
+            int from = batchStart;
+            int to = Math.min(size, batchStart + batchSize);
+            int numChunks = (to - from + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            IntUnaryOperator chunkTask = chunk -> accumulateRows(weights, positiveClass, deltas[chunk],
+                    from + chunk * CHUNK_SIZE, Math.min(to, from + (chunk + 1) * CHUNK_SIZE));
+            if (!threaded) {
+                successCount += IntStream.range(0, numChunks).map(chunkTask).sum();
+            } else {
+                successCount += pool.submit(() -> IntStream.range(0, numChunks).parallel().map(chunkTask).sum()).join();
+            }
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                double[] delta = deltas[chunk];
+                for (int i = 0; i < numColumns; i++) {
+                    weights[i] += delta[i];
+                }
+            }
+        }
+        return successCount;
+    }
+
+    /**
+     * Classifies the instances from (inclusive) to to (exclusive) without changing the weights, and adds up
+     * in delta how the weights should change for the ones classified wrongly.
+     * @return The number of instances classified correctly
+     */
+    private int accumulateRows(double[] weights, int positiveClass, double[] delta, int from, int to) {
+        int numColumns = instances.numColumns;
+        double[] inputs = instances.inputs;
+        int[] classIds = instances.classIds;
+        Arrays.fill(delta, 0);
+        int successCount = 0;
+        for (int inst = from, row = from * numColumns; inst < to; inst++, row += numColumns) {
+            double sum = 0;
+            for (int i = 0; i < numColumns; i++) {
+                sum += weights[i] * inputs[row + i];
+            }
+            int y = sum > 0 ? 1 : 0;
+            int d = classIds[inst] == positiveClass ? 1 : 0;
+            if (y == d) {
+                successCount++;
+            } else {
+                double adjust = LEARNING_RATE * (d - y);
+                for (int i = 0; i < numColumns; i++) {
+                    delta[i] += adjust * inputs[row + i];
+                }
+            }
+        }
+        return successCount;
+    }
+
+    /**
+     * Predicts the class of an instance
+     * @param weights The weights of the one perceptron for two classes, or of each class's perceptron for more
+     * @param inst The index of the instance
+     * @return The id of the predicted class
+     */
+    private int predict(double[][] weights, int inst) {
+        int best = 0;
+        double bestSum = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < weights.length; c++) {
+            double sum = sum(weights[c], inst);
+            if (weights.length == 1) return sum > 0 ? 1 : 0;
+            if (sum > bestSum) {    // ties go to the lowest class id
+                best = c;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The weighted sum of an instance's inputs
+     */
+    private double sum(double[] weights, int inst) {
+        double sum = 0;
+        if (instances.isSparse()) {
+            for (int j = instances.rowStarts[inst]; j < instances.rowStarts[inst + 1]; j++) {
+                sum += weights[instances.indices[j]] * instances.inputs[j];
+            }
+        } else {
+            int row = inst * instances.numColumns;
+            for (int i = 0; i < instances.numColumns; i++) {
+                sum += weights[i] * instances.inputs[row + i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Classifies every instance with the final weights, for the results file
+     */
+    private void recordPredictions(double[][] weights) {
+        for (int inst = 0; inst < instances.size(); inst++) {
+            Report.prediction(inst + 1, classNames[predict(weights, inst)], instances.classifiers[inst]);
+        }
+    }
+    /**
+     * Trains without reading the data file into memory, going through the file (text or binary) once for
+     * each iteration. Only the weights and a small shuffle buffer are kept: the first SHUFFLE_BUFFER instances
+     * fill the buffer, then each instance read takes the place of a random one from the buffer, which is
+     * trained on. So the instances are trained on in a different, roughly shuffled, order each iteration,
+     * while the file is still only read from start to end. With more than two classes, all the one-vs-rest
+     * perceptrons learn from each instance as it goes past, so the file is only read once per iteration.
+     */
+    private void buildFromStream() {
+        try (DataStream stream = DataStream.open(dataFileName)) {
+            setClassNames(stream.classNames());
+            int numColumns = stream.numInputs() + 1;
+            long size = stream.size();
+            Report.info("Streaming " + size + " instances with " + stream.numInputs() + " inputs from " + dataFileName);
+            int numPerceptrons = classNames.length > 2 ? classNames.length : 1;
+            Report.info("Building " + (numPerceptrons > 1 ? numPerceptrons + " one-vs-rest perceptrons" : "perceptron") +
+                    " with learning rate of " + LEARNING_RATE);
+            double[][] weights = new double[numPerceptrons][numColumns];    // all weights are initially zero
+            int bufferSize = (int) Math.min(SHUFFLE_BUFFER, size);
+            double[] buffer = new double[bufferSize * numColumns];
+            int[] bufferClasses = new int[bufferSize];
+            double[] row = new double[numColumns];
+            Random random = new Random(SHUFFLE_SEED);
+
+            long[] failCounts = new long[numPerceptrons];
+            int iterations = 0;
+            for (int z = 0; z < MAX_ITERATIONS; z++) {
+                iterations++;
+                long start = System.nanoTime();
+                stream.rewind();
+                Arrays.fill(failCounts, 0);
+                int filled = 0;
+                int classId;
+                while ((classId = stream.next(row, 0)) >= 0) {
+                    if (filled < bufferSize) {
+                        System.arraycopy(row, 0, buffer, filled * numColumns, numColumns);
+                        bufferClasses[filled++] = classId;
+                        continue;
                     }
+                    int slot = random.nextInt(bufferSize);
+                    learn(weights, buffer, bufferClasses, slot, failCounts);
+                    System.arraycopy(row, 0, buffer, slot * numColumns, numColumns);
+                    bufferClasses[slot] = classId;
                 }
+                // then what's left in the buffer, in a random order
+                for (int left = filled; left > 0; left--) {
+                    int slot = random.nextInt(left);
+                    learn(weights, buffer, bufferClasses, slot, failCounts);
+                    System.arraycopy(buffer, (left - 1) * numColumns, buffer, slot * numColumns, numColumns);
+                    bufferClasses[slot] = bufferClasses[left - 1];
+                }
+                long mistakes = Arrays.stream(failCounts).sum();
+                Report.printf(Report.Level.NORMAL, "Epoch %d: %d mistakes (%.1f ms)%n", z+1, mistakes,
+                        (System.nanoTime() - start) / 1e6);
+                if (mistakes == 0) break;
+            }
+
+            if (numPerceptrons > 1) {
+                for (int c = 0; c < numPerceptrons; c++) {
+                    Report.info("Class " + classNames[c] + ": " + failCounts[c] +
+                            " instances classified wrongly in the last iteration");
+                }
+            } else if (failCounts[0] == 0) {
+                Report.summary("\nSuccessfully converged!");
+                Report.summary("Number of iterations to convergence: " + iterations);
+            } else {
+                Report.summary("\nFailed to converge after " + MAX_ITERATIONS + " iterations");
+                Report.summary("Number of instances still classified wrongly: " + failCounts[0]);
             }
-//            System.out.println("\nIteration: " + (z+1));
-//            System.out.println("Success rate: " + successCount + " out of " + instances.size() + " instances");
-//            System.out.println("Accuracy: " + (double)successCount/instances.size()*100 + "%");
-            if (successCount == instances.size()) {
-                System.out.println("\nSuccessfully converged!");
-                System.out.println("Number of iterations to convergence: " + (z+1));
-                break;
+            for (double[] classWeights : weights) {
+                Report.println(numPerceptrons > 1 ? Report.Level.VERBOSE : Report.Level.NORMAL,
+                        "\nFinal weights:\n" + Arrays.toString(classWeights));
+            }
+            Report.metric("iterations", iterations);
+            if (numPerceptrons > 1 || Report.recording()) {
+                evaluateStream(stream, weights);
+            }
+        } catch (IOException e) {
+            Report.error("Couldn't read \"" + dataFileName + "\": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Lets each perceptron learn from one instance of the shuffle buffer, adding to failCounts for the ones
+     * that got it wrong.
+     */
+    private void learn(double[][] weights, double[] buffer, int[] bufferClasses, int slot, long[] failCounts) {
+        for (int p = 0; p < weights.length; p++) {
+            // with two classes the one perceptron outputs 1 for class 1
+            int positiveClass = weights.length == 1 ? 1 : p;
+            if (trainRows(weights[p], buffer, bufferClasses, positiveClass, slot, slot + 1) == 0) failCounts[p]++;
+        }
+    }
+
+    /**
+     * Goes through the file once more to classify every instance with the final weights, for the accuracy
+     * and the results file.
+     */
+    private void evaluateStream(DataStream stream, double[][] weights) throws IOException {
+        int numColumns = weights[0].length;
+        double[] row = new double[numColumns];
+        stream.rewind();
+        long successCount = 0;
+        long instanceNumber = 0;
+        int classId;
+        while ((classId = stream.next(row, 0)) >= 0) {
+            int best = 0;
+            double bestSum = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < weights.length; c++) {
+                double sum = 0;
+                for (int i = 0; i < numColumns; i++) {
+                    sum += weights[c][i] * row[i];
+                }
+                if (weights.length == 1) {
+                    best = sum > 0 ? 1 : 0;
+                } else if (sum > bestSum) {    // ties go to the lowest class id
+                    best = c;
+                    bestSum = sum;
+                }
             }
+            if (best == classId) successCount++;
+            instanceNumber++;
+            Report.prediction((int) instanceNumber, classNames[best], classNames[classId]);
+        }
+        Report.summary("\nCorrectly classified " + successCount + " out of " + instanceNumber +
+                " instances, accuracy " + (double) successCount / instanceNumber * 100 + "%");
+        Report.metric("correct", successCount);
+        Report.metric("accuracy", (double) successCount / instanceNumber);
+    }
 
+    /**
+     * Converts the data file to the binary file given with --save-binary. Giving the binary file in place of
+     * the data file on later runs (with or without --stream) reads it much faster.
+     */
+    private void saveBinaryFile() {
+        try {
+            DataStream.convert(dataFileName, binaryFileToSave);
+        } catch (IOException e) {
+            Report.error("Couldn't convert \"" + dataFileName + "\": " + e.getMessage());
+            System.exit(1);
         }
-        System.out.println("\nFailed to converge after " + MAX_ITERATIONS + " iterations");
-        System.out.println("Number of instances still classified wrongly: " + failCount);
-        System.out.println("\nFinal weights:\n" + weights);
+        Report.summary("Saved the binary file: " + binaryFileToSave);
     }
+
     public static void main(String[] args) {
-        Perceptron p = new Perceptron(args);
-        p.buildPerceptron();
+        Perceptron p = new Perceptron(Report.setUp("perceptron", args));
+        if (p.binaryFileToSave != null) {
+            p.saveBinaryFile();
+        } else if (p.streaming) {
+            p.buildFromStream();
+        } else {
+            p.buildPerceptron();
+        }
 
     }
 }
@@ -0,0 +1,234 @@
+package nz.ac.vuw.kanemich2.report;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The output for all three programs. Everything goes through one buffered stream that's only flushed when
+ * the buffer fills or the program ends, instead of a write to the console for every print, and each line
+ * has a level so less of it can be asked for:
+ * <pre>
+ *   --quiet      only the results (accuracy and so on), nothing for each instance
+ *   (default)    the same output as always
+ *   --verbose    extra detail, like the progress of each training iteration
+ * </pre>
+ * With --quiet the programs check shows() before formatting anything for each instance, so they skip that
+ * work entirely rather than formatting lines just to throw them away.
+ * <br>
+ * --results=&lt;file&gt; also saves the predictions and the summary results to a file, as JSON if the file
+ * name ends in .json and CSV otherwise. They're kept until the program ends and then written all at once.
+ * <br>
+ * Errors go to stderr through error(), which flushes the buffer first so they're in the right place.
+ */
+public final class Report {
+    public enum Level { QUIET, NORMAL, VERBOSE }
+
+    private record Prediction(int instance, String predicted, String actual) {}
+
+    private static Level level = Level.NORMAL;
+    private static PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static String program = "";
+    private static String resultsFile;      // null unless --results was given
+    private static final List<Prediction> predictions = new ArrayList<>();
+    private static final Map<String, Object> metrics = new LinkedHashMap<>();
+    private static boolean finished = false;
+
+    static {
+        // also covers the programs exiting with System.exit()
+        Runtime.getRuntime().addShutdownHook(new Thread(Report::finish));
+    }
+
+    private Report() {}
+
+    /**
+     * Takes the reporting options out of the program's arguments.
+     * @param programName The name of the program, for the results file
+     * @param args The arguments given when the program was executed
+     * @return The rest of the arguments
+     */
+    public static String[] setUp(String programName, String[] args) {
+        program = programName;
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--quiet")) {
+                level = Level.QUIET;
+            } else if (arg.equals("--verbose")) {
+                level = Level.VERBOSE;
+            } else if (arg.startsWith("--results=") && arg.length() > "--results=".length()) {
+                resultsFile = arg.substring("--results=".length());
+            } else {
+                rest.add(arg);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    /**
+     * Sends all further output to another stream, such as stderr when stdout is used for something else.
+     */
+    public static synchronized void redirectTo(PrintStream stream) {
+        out.flush();
+        out = stream;
+    }
+
+    /**
+     * @return true if lines of the given level are being shown
+     */
+    public static boolean shows(Level lineLevel) {
+        return lineLevel.compareTo(level) <= 0;
+    }
+
+    /**
+     * @return true if predictions are being kept for a results file
+     */
+    public static boolean recording() {
+        return resultsFile != null;
+    }
+
+    public static synchronized void print(Level lineLevel, String text) {
+        if (shows(lineLevel)) out.print(text);
+    }
+
+    public static synchronized void println(Level lineLevel, String line) {
+        if (shows(lineLevel)) out.println(line);
+    }
+
+    public static synchronized void printf(Level lineLevel, String format, Object... args) {
+        if (shows(lineLevel)) out.printf(format, args);
+    }
+
+    /** A result, shown even with --quiet */
+    public static void summary(String line) {
+        println(Level.QUIET, line);
+    }
+
+    /** The normal output */
+    public static void info(String line) {
+        println(Level.NORMAL, line);
+    }
+
+    /** Extra detail, only shown with --verbose */
+    public static void detail(String line) {
+        println(Level.VERBOSE, line);
+    }
+
+    /**
+     * Flushes the output now rather than when the program ends, for a program that's about to wait for a
+     * long time (like a service waiting for connections).
+     */
+    public static synchronized void flush() {
+        out.flush();
+    }
+
+    /**
+     * An error, which goes to stderr. Whatever is still in the output buffer is flushed first, so the error
+     * shows up after the output that came before it rather than ahead of it.
+     */
+    public static synchronized void error(String line) {
+        out.flush();
+        System.err.println(line);
+    }
+
+    /**
+     * Keeps a prediction for the results file, if there is one
+     * @param instance The number of the instance, starting at 1
+     * @param predicted The predicted class
+     * @param actual The actual class
+     */
+    public static synchronized void prediction(int instance, String predicted, String actual) {
+        if (resultsFile != null) predictions.add(new Prediction(instance, predicted, actual));
+    }
+
+    /**
+     * Keeps a summary result for the results file, if there is one
+     * @param name What it is, such as "accuracy"
+     * @param value Its value, a number or anything else (which is written as a string)
+     */
+    public static synchronized void metric(String name, Object value) {
+        if (resultsFile != null) metrics.put(name, value);
+    }
+
+    /**
+     * Writes the results file if there is one, and flushes the output. This happens when the program ends
+     * anyway, but can be called sooner.
+     */
+    public static synchronized void finish() {
+        if (finished) return;
+        finished = true;
+        if (resultsFile != null) {
+            try (Writer writer = new BufferedWriter(new FileWriter(resultsFile), 1 << 16)) {
+                writer.write(resultsFile.endsWith(".json") ? toJson() : toCsv());
+            } catch (IOException e) {
+                error("Couldn't write the results file \"" + resultsFile + "\": " + e.getMessage());
+            }
+        }
+        out.flush();
+    }
+
+    private static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"program\": ").append(quote(program)).append(",\n  \"metrics\": {");
+        String separator = "\n    ";
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            json.append(separator).append(quote(metric.getKey())).append(": ").append(jsonValue(metric.getValue()));
+            separator = ",\n    ";
+        }
+        json.append(metrics.isEmpty() ? "},\n" : "\n  },\n").append("  \"predictions\": [");
+        separator = "\n    ";
+        for (Prediction prediction : predictions) {
+            json.append(separator).append("{\"instance\": ").append(prediction.instance())
+                    .append(", \"predicted\": ").append(quote(prediction.predicted()))
+                    .append(", \"actual\": ").append(quote(prediction.actual())).append('}');
+            separator = ",\n    ";
+        }
+        json.append(predictions.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String jsonValue(Object value) {
+        if (value instanceof Number number && Double.isFinite(number.doubleValue())) return number.toString();
+        if (value instanceof Boolean) return value.toString();
+        return quote(String.valueOf(value));
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The CSV has a row for each prediction, after the summary results as comment lines starting with #
+     */
+    private static String toCsv() {
+        StringBuilder csv = new StringBuilder();
+        csv.append("# program,").append(program).append('\n');
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            csv.append("# ").append(metric.getKey()).append(',').append(metric.getValue()).append('\n');
+        }
+        csv.append("instance,predicted,actual\n");
+        for (Prediction prediction : predictions) {
+            csv.append(prediction.instance()).append(',').append(prediction.predicted()).append(',')
+                    .append(prediction.actual()).append('\n');
+        }
+        return csv.toString();
+    }
+}